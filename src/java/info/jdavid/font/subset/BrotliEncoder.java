@@ -0,0 +1,746 @@
+package info.jdavid.font.subset;
+
+import java.util.Arrays;
+
+
+// A small brotli (RFC 7932) encoder: LZ77 with hash chains and lazy matching, and one set of prefix
+// codes per meta-block, without block splitting, context modeling or the static dictionary.
+// The quality sets how hard the match finder searches. Meta-blocks that don't compress are stored.
+// The data can be compressed against a custom dictionary: the dictionary is treated as if it had
+// been decoded just before the data, so copies can reach into it.
+final class BrotliEncoder {
+
+  private static final int MIN_WINDOW = 10;
+  private static final int MAX_WINDOW = 24;
+  private static final int MAX_METABLOCK_SIZE = 1 << 20;
+
+  private static final int HASH_BITS = 17;
+  private static final int MIN_MATCH = 4;
+  private static final int MIN_QUALITY = 0;
+  private static final int MAX_QUALITY = 11;
+  // Hash chain depth and length of a match good enough to stop searching, for each quality.
+  private static final int[] CHAIN_DEPTHS = { 1, 2, 4, 6, 8, 16, 24, 32, 48, 64, 256, 1024 };
+  private static final int[] NICE_MATCHES = { 16, 24, 32, 48, 64, 96, 128, 160, 192, 258, 1024, 4096 };
+  // Qualities from which lazy matching is used, and the positions inside matches are hashed.
+  private static final int LAZY_QUALITY = 2;
+
+  private static final int LITERAL_ALPHABET = 256;
+  private static final int COMMAND_ALPHABET = 704;
+  private static final int DISTANCE_ALPHABET = 64;
+  private static final int MAX_CODE_LENGTH = 15;
+  private static final int MAX_CODE_LENGTH_CODE_LENGTH = 5;
+
+  private static final int[] INSERT_BASE = {
+    0, 1, 2, 3, 4, 5, 6, 8, 10, 14, 18, 26, 34, 50, 66, 98, 130, 194, 322, 578, 1090, 2114, 6210, 22594
+  };
+  private static final int[] INSERT_EXTRA = {
+    0, 0, 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 7, 8, 9, 10, 12, 14, 24
+  };
+  private static final int[] COPY_BASE = {
+    2, 3, 4, 5, 6, 7, 8, 9, 10, 12, 14, 18, 22, 30, 38, 54, 70, 102, 134, 198, 326, 582, 1094, 2118
+  };
+  private static final int[] COPY_EXTRA = {
+    0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 7, 8, 9, 10, 24
+  };
+  // Base of the insert and copy symbols for each combination of insert and copy code ranges,
+  // when the distance is explicit.
+  private static final int[] COMMAND_CELLS = { 128, 192, 384, 256, 320, 512, 448, 576, 640 };
+
+  // Order of the code length code lengths, and their static code.
+  private static final int[] CODE_LENGTH_ORDER = { 1, 2, 3, 4, 0, 5, 17, 6, 16, 7, 8, 9, 10, 11, 12, 13, 14, 15 };
+  private static final int[] CODE_LENGTH_CODE_BITS = { 0, 7, 3, 2, 1, 15 };
+  private static final int[] CODE_LENGTH_CODE_SIZES = { 2, 4, 3, 2, 2, 4 };
+
+  private static final int REPEAT_PREVIOUS = 16;
+  private static final int REPEAT_ZERO = 17;
+
+  private BrotliEncoder() {}
+
+  // Compresses input[offset..offset+length) into output from outputOffset, and returns the compressed
+  // length. The output can't go past outputLimit.
+  static int compress(final byte[] input, final int offset, final int length, final int quality, final int window,
+                      final byte[] output, final int outputOffset, final int outputLimit) {
+    check(quality, window);
+    final BitWriter out = new BitWriter(output, outputOffset, outputLimit);
+    encode(out, input, offset, offset, offset + length, false, quality, window);
+    return out.finish();
+  }
+
+  // The dictionary can be null. Only its last (1 << window) - 16 bytes can be referenced.
+  static byte[] compress(final byte[] input, final int offset, final int length, final byte[] dictionary,
+                         final int quality, final int window) {
+    check(quality, window);
+    final int maxDistance = (1 << window) - 16;
+    final int dictionaryLength = dictionary == null ? 0 : Math.min(dictionary.length, maxDistance);
+    final BitWriter out = new BitWriter(length / 2 + 64);
+    if (dictionaryLength == 0) {
+      encode(out, input, offset, offset, offset + length, dictionary != null, quality, window);
+    }
+    else {
+      // Matches can reference the dictionary, so it has to come right before the data.
+      final byte[] data = new byte[dictionaryLength + length];
+      System.arraycopy(dictionary, dictionary.length - dictionaryLength, data, 0, dictionaryLength);
+      System.arraycopy(input, offset, data, dictionaryLength, length);
+      encode(out, data, 0, dictionaryLength, data.length, true, quality, window);
+    }
+    return out.toByteArray();
+  }
+
+  private static void check(final int quality, final int window) {
+    if (quality < MIN_QUALITY || quality > MAX_QUALITY) throw new IllegalArgumentException();
+    if (window < MIN_WINDOW || window > MAX_WINDOW) throw new IllegalArgumentException();
+  }
+
+  // Encodes data[from..to), with data[base..from) as the dictionary.
+  private static void encode(final BitWriter out, final byte[] data, final int base, final int from, final int to,
+                             final boolean dictionary, final int quality, final int window) {
+    final int maxDistance = (1 << window) - 16;
+    writeWindow(out, window);
+    if (dictionary) {
+      // Empty metadata meta-block (ISLAST = 0, MNIBBLES = 0, reserved bit, MSKIPBYTES = 0), so that
+      // the data starts on a byte boundary: the dictionary can then be prepended as a stored meta-block
+      // for decoders without custom dictionary support.
+      out.write(1, 0);
+      out.write(2, 3);
+      out.write(1, 0);
+      out.write(2, 0);
+      out.align();
+    }
+    final Matcher matcher = new Matcher(data, base, to, maxDistance, quality);
+    matcher.hashUpTo(from);
+    final Commands commands = new Commands();
+    for (int start=from; start<to; start+=MAX_METABLOCK_SIZE) {
+      final int end = Math.min(to, start + MAX_METABLOCK_SIZE);
+      final long mark = out.position();
+      final int lastDistance = commands.lastDistance;
+      commands.clear();
+      matcher.parse(start, end, commands);
+      writeMetaBlock(out, data, start, end, commands);
+      if (out.position() - mark > 8L * (end - start + 8)) {
+        out.truncate(mark);
+        commands.lastDistance = lastDistance;
+        writeUncompressedMetaBlock(out, data, start, end);
+      }
+    }
+    // Empty last meta-block.
+    out.write(1, 1);
+    out.write(1, 1);
+  }
+
+  private static void writeWindow(final BitWriter out, final int window) {
+    if (window == 16) {
+      out.write(1, 0);
+    }
+    else if (window > 17) {
+      out.write(1, 1);
+      out.write(3, window - 17);
+    }
+    else {
+      out.write(1, 1);
+      out.write(3, 0);
+      out.write(3, window == 17 ? 0 : window - 8);
+    }
+  }
+
+  private static void writeMetaBlockLength(final BitWriter out, final int length) {
+    final int nibbles = length < (1 << 16) ? 4 : length < (1 << 20) ? 5 : 6;
+    out.write(2, nibbles - 4);
+    out.write(nibbles * 4, length);
+  }
+
+  private static void writeUncompressedMetaBlock(final BitWriter out, final byte[] data,
+                                                 final int start, final int end) {
+    // ISLAST = 0, MNIBBLES, MLEN - 1, ISUNCOMPRESSED = 1, then the bytes from the next byte boundary.
+    out.write(1, 0);
+    writeMetaBlockLength(out, end - start - 1);
+    out.write(1, 1);
+    out.align();
+    out.write(data, start, end - start);
+  }
+
+  private static void writeMetaBlock(final BitWriter out, final byte[] data, final int start, final int end,
+                                     final Commands commands) {
+    final int[] literalCounts = new int[LITERAL_ALPHABET];
+    final int[] commandCounts = new int[COMMAND_ALPHABET];
+    final int[] distanceCounts = new int[DISTANCE_ALPHABET];
+    int position = start;
+    for (int i=0; i<commands.size; ++i) {
+      for (int j=0; j<commands.insert[i]; ++j) ++literalCounts[data[position + j] & 0xff];
+      position += commands.insert[i] + commands.copy[i];
+      ++commandCounts[commands.symbol[i]];
+      if (commands.distanceSymbol[i] >= 0) ++distanceCounts[commands.distanceSymbol[i]];
+    }
+
+    // ISLAST = 0, MNIBBLES, MLEN - 1, ISUNCOMPRESSED = 0
+    out.write(1, 0);
+    writeMetaBlockLength(out, end - start - 1);
+    out.write(1, 0);
+    // One block type for literals, commands and distances, NPOSTFIX = 0, NDIRECT = 0,
+    // one literal context mode (LSB6), one literal prefix code and one distance prefix code.
+    out.write(1, 0);
+    out.write(1, 0);
+    out.write(1, 0);
+    out.write(2, 0);
+    out.write(4, 0);
+    out.write(2, 0);
+    out.write(1, 0);
+    out.write(1, 0);
+
+    final PrefixCode literals = PrefixCode.build(literalCounts, MAX_CODE_LENGTH);
+    final PrefixCode symbols = PrefixCode.build(commandCounts, MAX_CODE_LENGTH);
+    final PrefixCode distances = PrefixCode.build(distanceCounts, MAX_CODE_LENGTH);
+    literals.writeTo(out, 8);
+    symbols.writeTo(out, 10);
+    distances.writeTo(out, 6);
+
+    position = start;
+    for (int i=0; i<commands.size; ++i) {
+      final int insert = commands.insert[i];
+      final int copy = commands.copy[i];
+      symbols.write(out, commands.symbol[i]);
+      final int insertCode = insertCode(insert);
+      out.write(INSERT_EXTRA[insertCode], insert - INSERT_BASE[insertCode]);
+      final int copyCode = copyCode(Math.max(copy, 2));
+      out.write(COPY_EXTRA[copyCode], Math.max(copy, 2) - COPY_BASE[copyCode]);
+      for (int j=0; j<insert; ++j) literals.write(out, data[position + j] & 0xff);
+      position += insert + copy;
+      final int distanceSymbol = commands.distanceSymbol[i];
+      if (distanceSymbol >= 0) {
+        distances.write(out, distanceSymbol);
+        if (distanceSymbol >= 16) {
+          final int extraBits = 1 + ((distanceSymbol - 16) >> 1);
+          final int base = ((2 + ((distanceSymbol - 16) & 1)) << extraBits) - 4;
+          out.write(extraBits, commands.distance[i] - 1 - base);
+        }
+      }
+    }
+  }
+
+  static int insertCode(final int length) {
+    if (length < 6) return length;
+    if (length < 130) {
+      final int bits = log2(length - 2) - 1;
+      return (bits << 1) + ((length - 2) >> bits) + 2;
+    }
+    if (length < 2114) return log2(length - 66) + 10;
+    if (length < 6210) return 21;
+    if (length < 22594) return 22;
+    return 23;
+  }
+
+  static int copyCode(final int length) {
+    if (length < 10) return length - 2;
+    if (length < 134) {
+      final int bits = log2(length - 6) - 1;
+      return (bits << 1) + ((length - 6) >> bits) + 4;
+    }
+    if (length < 2118) return log2(length - 70) + 12;
+    return 23;
+  }
+
+  static int commandSymbol(final int insertCode, final int copyCode, final boolean lastDistance) {
+    final int low = ((insertCode & 7) << 3) | (copyCode & 7);
+    if (lastDistance && insertCode < 8 && copyCode < 16) return copyCode < 8 ? low : low | 64;
+    return COMMAND_CELLS[(copyCode >> 3) + 3 * (insertCode >> 3)] | low;
+  }
+
+  private static int log2(final int value) {
+    return 31 - Integer.numberOfLeadingZeros(value);
+  }
+
+  // The commands of a meta-block: insert length, copy length (0 for the final insert without copy),
+  // distance, insert and copy symbol, and distance symbol (-1 when the distance is implicit or unused).
+  static final class Commands {
+    int size = 0;
+    int[] insert = new int[256];
+    int[] copy = new int[256];
+    int[] distance = new int[256];
+    int[] symbol = new int[256];
+    int[] distanceSymbol = new int[256];
+    // Last distance used, shared by all the meta-blocks.
+    int lastDistance = 4;
+
+    void clear() {
+      size = 0;
+    }
+
+    void add(final int insertLength, final int copyLength, final int copyDistance) {
+      if (size == insert.length) {
+        final int capacity = size * 2;
+        insert = Arrays.copyOf(insert, capacity);
+        copy = Arrays.copyOf(copy, capacity);
+        distance = Arrays.copyOf(distance, capacity);
+        symbol = Arrays.copyOf(symbol, capacity);
+        distanceSymbol = Arrays.copyOf(distanceSymbol, capacity);
+      }
+      final int insertCode = insertCode(insertLength);
+      final int copyCode = copyCode(Math.max(copyLength, 2));
+      insert[size] = insertLength;
+      copy[size] = copyLength;
+      distance[size] = copyDistance;
+      if (copyLength == 0 || copyDistance == lastDistance) {
+        symbol[size] = commandSymbol(insertCode, copyCode, true);
+        // Explicit distance code 0 (last distance) when the symbol doesn't imply it.
+        distanceSymbol[size] = copyLength == 0 || symbol[size] < 128 ? -1 : 0;
+      }
+      else {
+        symbol[size] = commandSymbol(insertCode, copyCode, false);
+        final int d = copyDistance + 3;
+        final int bucket = log2(d) - 1;
+        final int prefix = (d >> bucket) & 1;
+        distanceSymbol[size] = 16 + 2 * (bucket - 1) + prefix;
+        lastDistance = copyDistance;
+      }
+      ++size;
+    }
+  }
+
+  // Hash chains over the dictionary and the data.
+  static final class Matcher {
+    private final byte[] data;
+    private final int base;
+    private final int limit;
+    private final int maxDistance;
+    private final int[] head = new int[1 << HASH_BITS];
+    private final int[] chain;
+    private final int chainDepth;
+    private final int niceMatch;
+    private final boolean lazy;
+    private int hashed;
+
+    // Matches within data[base..limit).
+    Matcher(final byte[] data, final int base, final int limit, final int maxDistance, final int quality) {
+      this.data = data;
+      this.base = base;
+      this.limit = limit;
+      this.maxDistance = maxDistance;
+      chainDepth = CHAIN_DEPTHS[quality];
+      niceMatch = NICE_MATCHES[quality];
+      lazy = quality >= LAZY_QUALITY;
+      Arrays.fill(head, -1);
+      chain = new int[limit - base];
+      hashed = base;
+    }
+
+    private int hash(final int position) {
+      final int value = (data[position] & 0xff) | ((data[position + 1] & 0xff) << 8) |
+                        ((data[position + 2] & 0xff) << 16) | ((data[position + 3] & 0xff) << 24);
+      return (value * 0x1e35a7bd) >>> (32 - HASH_BITS);
+    }
+
+    void insert(final int position) {
+      if (position + MIN_MATCH > limit) return;
+      final int h = hash(position);
+      chain[position - base] = head[h];
+      head[h] = position;
+    }
+
+    // Returns the length of the longest match (0 if shorter than MIN_MATCH), and its distance in
+    // matchDistance.
+    private int matchDistance;
+
+    private int longestMatch(final int position, final int end, final int lastDistance) {
+      matchDistance = 0;
+      if (position + MIN_MATCH > end) return 0;
+      final int limit = end - position;
+      int best = MIN_MATCH - 1;
+      // The last distance is the cheapest to encode.
+      if (lastDistance <= position - base && lastDistance <= maxDistance) {
+        final int length = matchLength(position - lastDistance, position, limit);
+        if (length >= MIN_MATCH) {
+          best = length;
+          matchDistance = lastDistance;
+        }
+      }
+      int candidate = head[hash(position)];
+      for (int depth=0; candidate >= 0 && depth < chainDepth && best < niceMatch && best < limit; ++depth) {
+        final int distance = position - candidate;
+        if (distance > maxDistance) break;
+        if (data[candidate + best] == data[position + best]) {
+          final int length = matchLength(candidate, position, limit);
+          if (length > best) {
+            best = length;
+            matchDistance = distance;
+          }
+        }
+        candidate = chain[candidate - base];
+      }
+      return best >= MIN_MATCH ? best : 0;
+    }
+
+    private int matchLength(final int from, final int position, final int limit) {
+      int length = 0;
+      while (length < limit && data[from + length] == data[position + length]) ++length;
+      return length;
+    }
+
+    // Adds all the positions before the given one to the hash chains.
+    void hashUpTo(final int position) {
+      while (hashed < position) insert(hashed++);
+    }
+
+    // Splits data[start..end) into commands.
+    void parse(final int start, final int end, final Commands commands) {
+      int position = start;
+      int literals = start;
+      while (position < end) {
+        hashUpTo(position);
+        int length = longestMatch(position, end, commands.lastDistance);
+        if (length == 0) {
+          ++position;
+          continue;
+        }
+        int distance = matchDistance;
+        // Lazy matching: a longer match at the next position is better than this one.
+        while (lazy && length < niceMatch && position + 1 < end) {
+          hashUpTo(position + 1);
+          final int next = longestMatch(position + 1, end, commands.lastDistance);
+          if (next <= length) break;
+          ++position;
+          length = next;
+          distance = matchDistance;
+        }
+        commands.add(position - literals, length, distance);
+        position += length;
+        literals = position;
+        if (!lazy) hashed = Math.max(hashed, position);
+      }
+      if (literals < end) commands.add(end - literals, 0, 0);
+    }
+  }
+
+  // Canonical prefix code, with its representation in the brotli format.
+  static final class PrefixCode {
+    private final int[] lengths;
+    private final int[] codes;
+    private final int[] used;
+
+    private PrefixCode(final int[] lengths, final int[] used) {
+      this.lengths = lengths;
+      this.used = used;
+      this.codes = canonicalCodes(lengths);
+    }
+
+    static PrefixCode build(final int[] counts, final int maxLength) {
+      int count = 0;
+      for (final int c: counts) if (c > 0) ++count;
+      final int[] used = new int[count];
+      count = 0;
+      for (int i=0; i<counts.length; ++i) if (counts[i] > 0) used[count++] = i;
+      final int[] lengths = new int[counts.length];
+      if (count == 0) {
+        return new PrefixCode(lengths, new int[] { 0 });
+      }
+      if (count == 1) {
+        return new PrefixCode(lengths, used);
+      }
+      if (count <= 4) {
+        // Lengths of the simple prefix codes, the most frequent symbols first.
+        final Integer[] order = new Integer[count];
+        for (int i=0; i<count; ++i) order[i] = used[i];
+        Arrays.sort(order, (a, b) -> counts[b] - counts[a]);
+        final int[] shape;
+        if (count == 2) shape = new int[] { 1, 1 };
+        else if (count == 3) shape = new int[] { 1, 2, 2 };
+        else if ((long)counts[order[0]] > (long)counts[order[2]] + counts[order[3]]) shape = new int[] { 1, 2, 3, 3 };
+        else shape = new int[] { 2, 2, 2, 2 };
+        for (int i=0; i<count; ++i) {
+          lengths[order[i]] = shape[i];
+          used[i] = order[i];
+        }
+        return new PrefixCode(lengths, used);
+      }
+      huffmanLengths(counts, maxLength, lengths);
+      return new PrefixCode(lengths, used);
+    }
+
+    // Writes the code of a symbol (nothing for codes with a single symbol).
+    void write(final BitWriter out, final int symbol) {
+      final int length = lengths[symbol];
+      if (length > 0) out.write(length, codes[symbol]);
+    }
+
+    void writeTo(final BitWriter out, final int alphabetBits) {
+      if (used.length <= 4) {
+        // Simple prefix code: HSKIP = 1, NSYM - 1, the symbols, and the tree select bit for 4 symbols.
+        out.write(2, 1);
+        out.write(2, used.length - 1);
+        for (final int symbol: used) out.write(alphabetBits, symbol);
+        if (used.length == 4) out.write(1, lengths[used[0]] == 1 ? 1 : 0);
+        return;
+      }
+      int last = lengths.length;
+      while (lengths[last - 1] == 0) --last;
+      final int[] tokens = new int[last * 2];
+      final int[] extras = new int[last * 2];
+      final int tokenCount = tokenize(lengths, last, tokens, extras);
+      final int[] tokenCounts = new int[18];
+      for (int i=0; i<tokenCount; ++i) ++tokenCounts[tokens[i]];
+      final int[] codeLengthLengths = new int[18];
+      int used = 0;
+      for (final int c: tokenCounts) if (c > 0) ++used;
+      if (used == 1) {
+        // A single code length symbol: it is coded with 0 bits.
+        for (int i=0; i<18; ++i) if (tokenCounts[i] > 0) codeLengthLengths[i] = 1;
+      }
+      else {
+        huffmanLengths(tokenCounts, MAX_CODE_LENGTH_CODE_LENGTH, codeLengthLengths);
+      }
+      int stored = 18;
+      if (used > 1) {
+        while (codeLengthLengths[CODE_LENGTH_ORDER[stored - 1]] == 0) --stored;
+      }
+      int skip = 0;
+      if (codeLengthLengths[CODE_LENGTH_ORDER[0]] == 0 && codeLengthLengths[CODE_LENGTH_ORDER[1]] == 0) {
+        skip = codeLengthLengths[CODE_LENGTH_ORDER[2]] == 0 ? 3 : 2;
+      }
+      out.write(2, skip);
+      for (int i=skip; i<stored; ++i) {
+        final int length = codeLengthLengths[CODE_LENGTH_ORDER[i]];
+        out.write(CODE_LENGTH_CODE_SIZES[length], CODE_LENGTH_CODE_BITS[length]);
+      }
+      final int[] codeLengthCodes = canonicalCodes(codeLengthLengths);
+      for (int i=0; i<tokenCount; ++i) {
+        if (used > 1) out.write(codeLengthLengths[tokens[i]], codeLengthCodes[tokens[i]]);
+        if (tokens[i] == REPEAT_PREVIOUS) out.write(2, extras[i]);
+        else if (tokens[i] == REPEAT_ZERO) out.write(3, extras[i]);
+      }
+    }
+
+    // Code lengths as code length symbols, with runs of zeros and of repeated lengths.
+    private static int tokenize(final int[] lengths, final int count, final int[] tokens, final int[] extras) {
+      int size = 0;
+      int previous = 8;
+      for (int i=0; i<count;) {
+        final int value = lengths[i];
+        int run = 1;
+        while (i + run < count && lengths[i + run] == value) ++run;
+        i += run;
+        if (value == 0) {
+          size = repeatZeros(run, tokens, extras, size);
+        }
+        else {
+          size = repeatPrevious(previous, value, run, tokens, extras, size);
+          previous = value;
+        }
+      }
+      return size;
+    }
+
+    private static int repeatZeros(final int count, final int[] tokens, final int[] extras, final int offset) {
+      int size = offset;
+      int repetitions = count;
+      if (repetitions == 11) {
+        tokens[size++] = 0;
+        --repetitions;
+      }
+      if (repetitions < 3) {
+        for (int i=0; i<repetitions; ++i) tokens[size++] = 0;
+        return size;
+      }
+      final int start = size;
+      repetitions -= 3;
+      while (true) {
+        tokens[size] = REPEAT_ZERO;
+        extras[size++] = repetitions & 7;
+        repetitions >>= 3;
+        if (repetitions == 0) break;
+        --repetitions;
+      }
+      reverse(tokens, extras, start, size);
+      return size;
+    }
+
+    private static int repeatPrevious(final int previous, final int value, final int count,
+                                      final int[] tokens, final int[] extras, final int offset) {
+      int size = offset;
+      int repetitions = count;
+      if (previous != value) {
+        tokens[size++] = value;
+        --repetitions;
+      }
+      if (repetitions == 7) {
+        tokens[size++] = value;
+        --repetitions;
+      }
+      if (repetitions < 3) {
+        for (int i=0; i<repetitions; ++i) tokens[size++] = value;
+        return size;
+      }
+      final int start = size;
+      repetitions -= 3;
+      while (true) {
+        tokens[size] = REPEAT_PREVIOUS;
+        extras[size++] = repetitions & 3;
+        repetitions >>= 2;
+        if (repetitions == 0) break;
+        --repetitions;
+      }
+      reverse(tokens, extras, start, size);
+      return size;
+    }
+
+    private static void reverse(final int[] tokens, final int[] extras, final int start, final int end) {
+      for (int i=start, j=end-1; i<j; ++i, --j) {
+        final int token = tokens[i];
+        tokens[i] = tokens[j];
+        tokens[j] = token;
+        final int extra = extras[i];
+        extras[i] = extras[j];
+        extras[j] = extra;
+      }
+    }
+
+    // Huffman code lengths limited to maxLength: the smallest counts are raised until the tree is
+    // shallow enough.
+    static void huffmanLengths(final int[] counts, final int maxLength, final int[] lengths) {
+      for (int floor=1;; floor*=2) {
+        if (huffmanLengths(counts, floor, maxLength, lengths)) return;
+      }
+    }
+
+    private static boolean huffmanLengths(final int[] counts, final int floor, final int maxLength,
+                                          final int[] lengths) {
+      int n = 0;
+      for (final int c: counts) if (c > 0) ++n;
+      // Nodes: leaves first, then internal nodes. Weights are sorted for the two queue merge.
+      final long[] leaves = new long[n];
+      n = 0;
+      for (int i=0; i<counts.length; ++i) {
+        if (counts[i] > 0) leaves[n++] = ((long)Math.max(counts[i], floor) << 32) | i;
+      }
+      Arrays.sort(leaves);
+      final long[] weights = new long[2 * n - 1];
+      final int[] parents = new int[2 * n - 1];
+      for (int i=0; i<n; ++i) weights[i] = leaves[i] >>> 32;
+      int leaf = 0;
+      int node = n;
+      int next = n;
+      for (int k=0; k<n-1; ++k) {
+        final int a;
+        if (leaf < n && (node >= next || weights[leaf] <= weights[node])) a = leaf++; else a = node++;
+        final int b;
+        if (leaf < n && (node >= next || weights[leaf] <= weights[node])) b = leaf++; else b = node++;
+        weights[next] = weights[a] + weights[b];
+        parents[a] = next;
+        parents[b] = next;
+        ++next;
+      }
+      final int[] depths = new int[2 * n - 1];
+      for (int i=2*n-3; i>=0; --i) depths[i] = depths[parents[i]] + 1;
+      Arrays.fill(lengths, 0);
+      for (int i=0; i<n; ++i) {
+        if (depths[i] > maxLength) return false;
+        lengths[(int)leaves[i]] = depths[i];
+      }
+      return true;
+    }
+
+    // Canonical codes, bit reversed since they are written starting with the least significant bit.
+    static int[] canonicalCodes(final int[] lengths) {
+      final int[] counts = new int[MAX_CODE_LENGTH + 1];
+      for (final int length: lengths) ++counts[length];
+      counts[0] = 0;
+      final int[] next = new int[MAX_CODE_LENGTH + 2];
+      int code = 0;
+      for (int length=1; length<=MAX_CODE_LENGTH; ++length) {
+        code = (code + counts[length - 1]) << 1;
+        next[length] = code;
+      }
+      final int[] codes = new int[lengths.length];
+      for (int i=0; i<lengths.length; ++i) {
+        final int length = lengths[i];
+        if (length == 0) continue;
+        codes[i] = Integer.reverse(next[length]++) >>> (32 - length);
+      }
+      return codes;
+    }
+  }
+
+  // Writes bits starting with the least significant bit, either to its own array, which grows as needed,
+  // or to a range of an existing array.
+  static final class BitWriter {
+    private final byte[] target;
+    private final int offset;
+    private final int targetLimit;
+    private byte[] bytes;
+    private int limit;
+    private int size;
+    private long buffer = 0;
+    private int bits = 0;
+
+    BitWriter(final int capacity) {
+      this(new byte[Math.max(capacity, 16)], 0, Math.max(capacity, 16));
+    }
+
+    // Writes to bytes[offset..limit). Output that goes past the limit before being truncated continues
+    // in a larger copy of the array, and finish() moves the final output back into the range.
+    BitWriter(final byte[] bytes, final int offset, final int limit) {
+      this.target = bytes;
+      this.offset = offset;
+      this.targetLimit = limit;
+      this.bytes = bytes;
+      this.limit = limit;
+      this.size = offset;
+    }
+
+    private void ensureCapacity(final int length) {
+      if (size + length <= limit) return;
+      bytes = Arrays.copyOf(bytes, Math.max(size + length, 2 * size));
+      limit = bytes.length;
+    }
+
+    void write(final int count, final int value) {
+      buffer |= (value & ((1L << count) - 1)) << bits;
+      bits += count;
+      while (bits >= 8) {
+        if (size == limit) ensureCapacity(1);
+        bytes[size++] = (byte)buffer;
+        buffer >>>= 8;
+        bits -= 8;
+      }
+    }
+
+    void write(final byte[] src, final int offset, final int length) {
+      ensureCapacity(length);
+      System.arraycopy(src, offset, bytes, size, length);
+      size += length;
+    }
+
+    // Pads with zeros up to the next byte boundary.
+    void align() {
+      if (bits > 0) write(8 - bits, 0);
+    }
+
+    long position() {
+      return 8L * (size - offset) + bits;
+    }
+
+    // Goes back to a previous position.
+    void truncate(final long position) {
+      size = offset + (int)(position >>> 3);
+      bits = (int)(position & 7);
+      buffer = bits == 0 ? 0 : bytes[size] & ((1 << bits) - 1);
+    }
+
+    byte[] toByteArray() {
+      align();
+      return Arrays.copyOfRange(bytes, offset, size);
+    }
+
+    // Pads the last byte and returns the length of the output, which is in the range given to the
+    // constructor.
+    int finish() {
+      align();
+      final int length = size - offset;
+      if (bytes != target) {
+        if (size > targetLimit) throw new IllegalStateException("Output buffer too small.");
+        System.arraycopy(bytes, offset, target, offset, length);
+        bytes = target;
+        limit = targetLimit;
+      }
+      return length;
+    }
+  }
+
+}
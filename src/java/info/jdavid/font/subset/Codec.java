@@ -0,0 +1,101 @@
+package info.jdavid.font.subset;
+
+
+/**
+ * Compression codec used by the font writers. Codecs are registered as services
+ * (META-INF/services/info.jdavid.font.subset.Codec) and listed by {@link Codecs}. They are only
+ * instantiated when a codec is first needed, and the ones that depend on a native library only load
+ * it when {@link #isAvailable()} is first called.
+ */
+public interface Codec {
+
+  /**
+   * Unique name, for instance "brotli-native".
+   */
+  String name();
+
+  /**
+   * The format of the compressed streams ({@link Codecs#BROTLI}, {@link Codecs#ZLIB} or
+   * {@link Codecs#LZMA}). Writers accept any codec that produces the format they need.
+   */
+  String format();
+
+  /**
+   * Whether the codec can be used on this platform.
+   */
+  boolean isAvailable();
+
+  /**
+   * Upper bound for the size of the compressed data.
+   */
+  int maxCompressedLength(int length);
+
+  /**
+   * Compresses the input at the given offset of the output, which has room for at least
+   * {@link #maxCompressedLength(int)} bytes, and returns the compressed length.
+   */
+  int compress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset,
+               Parameters parameters);
+
+  /**
+   * Codec neutral compression settings. Each codec maps them to its own settings and ignores the ones
+   * it has no use for:
+   * <ul>
+   *   <li>brotli-native: quality, window and font mode.</li>
+   *   <li>brotli-java: quality and window.</li>
+   *   <li>zlib: the quality is the deflate level (above 9 is the same as 9).</li>
+   *   <li>zlib-zopfli: the number of iterations of the parse optimization.</li>
+   *   <li>lzma: the window is the dictionary size, and the quality sets the number of fast bytes
+   *   (32 below 7, 128 from 7).</li>
+   * </ul>
+   * The writers get them from their {@link Options}.
+   */
+  final class Parameters {
+
+    public static final Parameters DEFAULT = new Parameters(11, 22, false, 15);
+
+    private final int quality;
+    private final int window;
+    private final boolean fontMode;
+    private final int iterations;
+
+    /**
+     * @param quality from 0 (fastest) to 11 (smallest).
+     * @param window base 2 logarithm of the window size, from 10 to 24.
+     * @param fontMode whether the data is font data (for codecs that have a mode for it).
+     * @param iterations number of iterations for codecs that optimize iteratively, at least 1.
+     */
+    public Parameters(final int quality, final int window, final boolean fontMode, final int iterations) {
+      if (quality < 0 || quality > 11) throw new IllegalArgumentException();
+      if (window < 10 || window > 24) throw new IllegalArgumentException();
+      if (iterations < 1) throw new IllegalArgumentException();
+      this.quality = quality;
+      this.window = window;
+      this.fontMode = fontMode;
+      this.iterations = iterations;
+    }
+
+    public int quality() {
+      return quality;
+    }
+
+    public int window() {
+      return window;
+    }
+
+    public boolean fontMode() {
+      return fontMode;
+    }
+
+    public int iterations() {
+      return iterations;
+    }
+
+    @Override
+    public String toString() {
+      return "Parameters{quality=" + quality + ", window=" + window + ", fontMode=" + fontMode +
+             ", iterations=" + iterations + "}";
+    }
+  }
+
+}
@@ -0,0 +1,313 @@
+package info.jdavid.font.subset;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.zip.Deflater;
+
+import SevenZip.Compression.LZMA.Encoder;
+import org.meteogroup.jbrotli.Brotli;
+import org.meteogroup.jbrotli.BrotliCompressor;
+import org.meteogroup.jbrotli.libloader.BrotliLibraryLoader;
+
+
+/**
+ * The registered compression codecs, and the codecs bundled with the library: native brotli (jbrotli),
+ * pure java brotli, zlib, zopfli style zlib and lzma.
+ */
+public final class Codecs {
+
+  public static final String BROTLI = "brotli";
+  public static final String ZLIB = "zlib";
+  public static final String LZMA = "lzma";
+
+  // Set to "java" to use the pure java brotli encoder even when the native library is available.
+  private static final String BROTLI_PROPERTY = "info.jdavid.font.subset.brotli";
+
+  private Codecs() {}
+
+  /**
+   * All the registered codecs, in registration order, whether they are available or not.
+   */
+  public static List<Codec> all() {
+    return Registry.CODECS;
+  }
+
+  /**
+   * The codec with the given name.
+   */
+  public static Codec get(final String name) {
+    for (final Codec codec: Registry.CODECS) {
+      if (codec.name().equals(name)) return codec;
+    }
+    throw new IllegalArgumentException("Unknown codec: " + name);
+  }
+
+  // The codec of the options when it produces the format, or else the first available codec for it.
+  static Codec forFormat(final String format, final Options options) {
+    if (options.codec() != null) {
+      final Codec codec = get(options.codec());
+      if (codec.format().equals(format) && codec.isAvailable()) return codec;
+    }
+    for (final Codec codec: Registry.CODECS) {
+      if (codec.format().equals(format) && codec.isAvailable()) return codec;
+    }
+    throw new IllegalStateException("No codec available for " + format + ".");
+  }
+
+  // The service loader only runs on first use.
+  private static final class Registry {
+    static final List<Codec> CODECS = load();
+
+    private static List<Codec> load() {
+      final List<Codec> codecs = new ArrayList<>();
+      final Iterator<Codec> iterator = ServiceLoader.load(Codec.class, Codecs.class.getClassLoader()).iterator();
+      while (true) {
+        try {
+          if (!iterator.hasNext()) break;
+          codecs.add(iterator.next());
+        }
+        catch (final ServiceConfigurationError e) {
+          // Skips the codecs that can't be instantiated.
+        }
+      }
+      return Collections.unmodifiableList(codecs);
+    }
+  }
+
+  // Brotli with the jbrotli native library, which only exists for linux and windows on x86-64.
+  public static final class NativeBrotli implements Codec {
+    @Override
+    public String name() {
+      return "brotli-native";
+    }
+
+    @Override
+    public String format() {
+      return BROTLI;
+    }
+
+    @Override
+    public boolean isAvailable() {
+      return Library.LOADED;
+    }
+
+    @Override
+    public int maxCompressedLength(final int length) {
+      return length + (length >> 2) + 1024;
+    }
+
+    @Override
+    public int compress(final byte[] input, final int inputOffset, final int inputLength,
+                        final byte[] output, final int outputOffset, final Parameters parameters) {
+      if (!isAvailable()) throw new IllegalStateException();
+      final Brotli.Parameter parameter =
+        new Brotli.Parameter(parameters.fontMode() ? Brotli.Mode.FONT : Brotli.Mode.GENERIC,
+                             parameters.quality(), parameters.window(), 0);
+      return new BrotliCompressor().compress(parameter,
+                                             input, inputOffset, inputLength,
+                                             output, outputOffset, maxCompressedLength(inputLength));
+    }
+
+    // The library is loaded on first use.
+    private static final class Library {
+      static final boolean LOADED = load();
+
+      private static boolean load() {
+        if ("java".equals(System.getProperty(BROTLI_PROPERTY))) return false;
+        try {
+          BrotliLibraryLoader.loadBrotli();
+          return true;
+        }
+        catch (final LinkageError | RuntimeException e) {
+          // No native library for this platform.
+          return false;
+        }
+      }
+    }
+  }
+
+  // Brotli with BrotliEncoder. The font mode is ignored.
+  public static final class JavaBrotli implements Codec {
+    @Override
+    public String name() {
+      return "brotli-java";
+    }
+
+    @Override
+    public String format() {
+      return BROTLI;
+    }
+
+    @Override
+    public boolean isAvailable() {
+      return true;
+    }
+
+    @Override
+    public int maxCompressedLength(final int length) {
+      return length + (length >> 2) + 1024;
+    }
+
+    @Override
+    public int compress(final byte[] input, final int inputOffset, final int inputLength,
+                        final byte[] output, final int outputOffset, final Parameters parameters) {
+      return BrotliEncoder.compress(input, inputOffset, inputLength, parameters.quality(), parameters.window(),
+                                    output, outputOffset, outputOffset + maxCompressedLength(inputLength));
+    }
+  }
+
+  // Zlib streams with java.util.zip. The quality is used as the level (up to 9).
+  public static final class Zlib implements Codec {
+    @Override
+    public String name() {
+      return "zlib";
+    }
+
+    @Override
+    public String format() {
+      return ZLIB;
+    }
+
+    @Override
+    public boolean isAvailable() {
+      return true;
+    }
+
+    @Override
+    public int maxCompressedLength(final int length) {
+      return length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+    }
+
+    @Override
+    public int compress(final byte[] input, final int inputOffset, final int inputLength,
+                        final byte[] output, final int outputOffset, final Parameters parameters) {
+      final Deflater deflater = new Deflater(Math.min(parameters.quality(), Deflater.BEST_COMPRESSION));
+      try {
+        deflater.setInput(input, inputOffset, inputLength);
+        deflater.finish();
+        final int limit = outputOffset + maxCompressedLength(inputLength);
+        int offset = outputOffset;
+        while (!deflater.finished()) {
+          offset += deflater.deflate(output, offset, limit - offset);
+        }
+        return offset - outputOffset;
+      }
+      finally {
+        deflater.end();
+      }
+    }
+  }
+
+  // Zlib streams with DeflateEncoder: smaller than with java.util.zip, but much slower, for files that
+  // are compressed offline. It is never picked by default. Only the number of iterations of the parse
+  // optimization is used (15 by default, like zopfli).
+  public static final class Zopfli implements Codec {
+    @Override
+    public String name() {
+      return "zlib-zopfli";
+    }
+
+    @Override
+    public String format() {
+      return ZLIB;
+    }
+
+    @Override
+    public boolean isAvailable() {
+      return true;
+    }
+
+    @Override
+    public int maxCompressedLength(final int length) {
+      return length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+    }
+
+    @Override
+    public int compress(final byte[] input, final int inputOffset, final int inputLength,
+                        final byte[] output, final int outputOffset, final Parameters parameters) {
+      return DeflateEncoder.compress(input, inputOffset, inputLength, parameters.iterations(),
+                                     output, outputOffset, outputOffset + maxCompressedLength(inputLength));
+    }
+  }
+
+  // Lzma streams (.lzma header: properties and uncompressed length) with the bundled 7-zip encoder.
+  // The dictionary size is the window size, and the quality sets the number of fast bytes.
+  public static final class Lzma implements Codec {
+    @Override
+    public String name() {
+      return "lzma";
+    }
+
+    @Override
+    public String format() {
+      return LZMA;
+    }
+
+    @Override
+    public boolean isAvailable() {
+      return true;
+    }
+
+    @Override
+    public int maxCompressedLength(final int length) {
+      return length + (length >> 2) + 1024;
+    }
+
+    @Override
+    public int compress(final byte[] input, final int inputOffset, final int inputLength,
+                        final byte[] output, final int outputOffset, final Parameters parameters) {
+      final Encoder encoder = new Encoder();
+      encoder.SetAlgorithm(2);
+      encoder.SetDictionarySize(1 << parameters.window());
+      encoder.SetNumFastBytes(parameters.quality() < 7 ? 32 : 128);
+      encoder.SetMatchFinder(1);
+      encoder.SetLcLpPb(3, 0, 2);
+      encoder.SetEndMarkerMode(false);
+      final ArrayOutputStream out =
+        new ArrayOutputStream(output, outputOffset, outputOffset + maxCompressedLength(inputLength));
+      try {
+        encoder.WriteCoderProperties(out);
+        for (int i=0; i<8; ++i) out.write((int)((long)inputLength >>> (8 * i)) & 0xff);
+        encoder.Code(new ByteArrayInputStream(input, inputOffset, inputLength), out, -1, -1, null);
+      }
+      catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return out.offset - outputOffset;
+    }
+  }
+
+  private static final class ArrayOutputStream extends OutputStream {
+    private final byte[] bytes;
+    private final int limit;
+    int offset;
+
+    ArrayOutputStream(final byte[] bytes, final int offset, final int limit) {
+      this.bytes = bytes;
+      this.offset = offset;
+      this.limit = limit;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      if (offset == limit) throw new IOException("Output buffer too small.");
+      bytes[offset++] = (byte)b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      if (offset + len > limit) throw new IOException("Output buffer too small.");
+      System.arraycopy(b, off, bytes, offset, len);
+      offset += len;
+    }
+  }
+
+}
@@ -0,0 +1,283 @@
+package info.jdavid.font.subset;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Base64;
+
+
+/**
+ * Immutable set of unicode codepoints, stored as sorted and merged ranges.
+ * Two sets with the same codepoints are equal regardless of how they were built, which makes
+ * them suitable as cache keys. {@link #encode()} gives a compact url-safe representation that
+ * {@link #decode(String)} turns back into an equal set.
+ */
+public final class CodepointSet {
+
+  public static final CodepointSet EMPTY = new CodepointSet(new int[0]);
+
+  // Pairs of inclusive range bounds: start0, end0, start1, end1, ...
+  private final int[] ranges;
+  private final int hash;
+
+  private CodepointSet(final int[] ranges) {
+    this.ranges = ranges;
+    this.hash = Arrays.hashCode(ranges);
+  }
+
+  public static CodepointSet of(final CharSequence str) {
+    return sorted(str.codePoints().toArray());
+  }
+
+  public static CodepointSet of(final int... codepoints) {
+    return sorted(codepoints.clone());
+  }
+
+  public static CodepointSet range(final int first, final int last) {
+    check(first);
+    check(last);
+    if (first > last) throw new IllegalArgumentException();
+    return new CodepointSet(new int[] { first, last });
+  }
+
+  // Takes ownership of the codepoints array.
+  private static CodepointSet sorted(final int[] codepoints) {
+    if (codepoints.length == 0) return EMPTY;
+    Arrays.sort(codepoints);
+    check(codepoints[0]);
+    check(codepoints[codepoints.length - 1]);
+    int n = 0;
+    final int[] ranges = new int[codepoints.length * 2];
+    int start = codepoints[0];
+    int end = start;
+    for (int i=1; i<codepoints.length; ++i) {
+      final int c = codepoints[i];
+      if (c > end + 1) {
+        ranges[n++] = start;
+        ranges[n++] = end;
+        start = c;
+      }
+      if (c > end) end = c;
+    }
+    ranges[n++] = start;
+    ranges[n++] = end;
+    return new CodepointSet(Arrays.copyOf(ranges, n));
+  }
+
+  private static void check(final int codepoint) {
+    if (codepoint < 0 || codepoint > Character.MAX_CODE_POINT) {
+      throw new IllegalArgumentException("Invalid codepoint: " + codepoint);
+    }
+  }
+
+  public boolean contains(final int codepoint) {
+    int low = 0;
+    int high = ranges.length / 2 - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      if (codepoint < ranges[mid * 2]) high = mid - 1;
+      else if (codepoint > ranges[mid * 2 + 1]) low = mid + 1;
+      else return true;
+    }
+    return false;
+  }
+
+  public boolean isEmpty() {
+    return ranges.length == 0;
+  }
+
+  public int size() {
+    int size = 0;
+    for (int i=0; i<ranges.length; i+=2) {
+      size += ranges[i + 1] - ranges[i] + 1;
+    }
+    return size;
+  }
+
+  public int rangeCount() {
+    return ranges.length / 2;
+  }
+
+  public int rangeStart(final int index) {
+    return ranges[index * 2];
+  }
+
+  public int rangeEnd(final int index) {
+    return ranges[index * 2 + 1];
+  }
+
+  public int[] toArray() {
+    final int[] codepoints = new int[size()];
+    int n = 0;
+    for (int i=0; i<ranges.length; i+=2) {
+      for (int c=ranges[i]; c<=ranges[i + 1]; ++c) codepoints[n++] = c;
+    }
+    return codepoints;
+  }
+
+  public CodepointSet union(final CodepointSet other) {
+    if (other.isEmpty()) return this;
+    if (isEmpty()) return other;
+    final int[] merged = new int[ranges.length + other.ranges.length];
+    int n = 0;
+    int i = 0;
+    int j = 0;
+    while (i < ranges.length || j < other.ranges.length) {
+      final int start;
+      final int end;
+      if (j == other.ranges.length || (i < ranges.length && ranges[i] <= other.ranges[j])) {
+        start = ranges[i];
+        end = ranges[i + 1];
+        i += 2;
+      }
+      else {
+        start = other.ranges[j];
+        end = other.ranges[j + 1];
+        j += 2;
+      }
+      if (n > 0 && start <= merged[n - 1] + 1) {
+        if (end > merged[n - 1]) merged[n - 1] = end;
+      }
+      else {
+        merged[n++] = start;
+        merged[n++] = end;
+      }
+    }
+    return new CodepointSet(Arrays.copyOf(merged, n));
+  }
+
+  public CodepointSet intersection(final CodepointSet other) {
+    final int[] result = new int[ranges.length + other.ranges.length];
+    int n = 0;
+    int i = 0;
+    int j = 0;
+    while (i < ranges.length && j < other.ranges.length) {
+      final int start = Math.max(ranges[i], other.ranges[j]);
+      final int end = Math.min(ranges[i + 1], other.ranges[j + 1]);
+      if (start <= end) {
+        result[n++] = start;
+        result[n++] = end;
+      }
+      if (ranges[i + 1] < other.ranges[j + 1]) i += 2; else j += 2;
+    }
+    return n == 0 ? EMPTY : new CodepointSet(Arrays.copyOf(result, n));
+  }
+
+  public CodepointSet minus(final CodepointSet other) {
+    if (isEmpty() || other.isEmpty()) return this;
+    final int[] result = new int[ranges.length + other.ranges.length];
+    int n = 0;
+    int j = 0;
+    for (int i=0; i<ranges.length; i+=2) {
+      int start = ranges[i];
+      final int end = ranges[i + 1];
+      while (j < other.ranges.length && other.ranges[j + 1] < start) j += 2;
+      int k = j;
+      while (start <= end) {
+        if (k == other.ranges.length || other.ranges[k] > end) {
+          result[n++] = start;
+          result[n++] = end;
+          break;
+        }
+        if (other.ranges[k] > start) {
+          result[n++] = start;
+          result[n++] = other.ranges[k] - 1;
+        }
+        if (other.ranges[k + 1] >= end) break;
+        start = other.ranges[k + 1] + 1;
+        k += 2;
+      }
+    }
+    return n == 0 ? EMPTY : new CodepointSet(Arrays.copyOf(result, n));
+  }
+
+  /**
+   * Url-safe base64 of the ranges, each written as the gap since the previous range and the
+   * range length, both as variable length integers.
+   */
+  public String encode() {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(ranges.length * 2);
+    int previous = -1;
+    for (int i=0; i<ranges.length; i+=2) {
+      writeVarInt(out, ranges[i] - previous - 1);
+      writeVarInt(out, ranges[i + 1] - ranges[i]);
+      previous = ranges[i + 1];
+    }
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(out.toByteArray());
+  }
+
+  public static CodepointSet decode(final String encoded) {
+    final byte[] bytes = Base64.getUrlDecoder().decode(encoded);
+    final int[] ranges = new int[bytes.length];
+    final int[] position = new int[1];
+    int n = 0;
+    int previous = -1;
+    while (position[0] < bytes.length) {
+      final int gap = readVarInt(bytes, position);
+      // Adjacent ranges are always merged, so only the first range can start right after the previous one.
+      if (gap == 0 && n > 0) throw new IllegalArgumentException();
+      final int start = previous + 1 + gap;
+      final int end = start + readVarInt(bytes, position);
+      check(start);
+      check(end);
+      if (n == ranges.length) throw new IllegalArgumentException();
+      ranges[n++] = start;
+      ranges[n++] = end;
+      previous = end;
+    }
+    return n == 0 ? EMPTY : new CodepointSet(Arrays.copyOf(ranges, n));
+  }
+
+  private static void writeVarInt(final ByteArrayOutputStream out, final int value) {
+    int v = value;
+    while (v >= 0x80) {
+      out.write((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out.write(v);
+  }
+
+  private static int readVarInt(final byte[] bytes, final int[] position) {
+    int value = 0;
+    for (int shift=0; shift<28; shift+=7) {
+      if (position[0] == bytes.length) throw new IllegalArgumentException();
+      final int b = bytes[position[0]++];
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IllegalArgumentException();
+  }
+
+  /**
+   * The set in the syntax of the css unicode-range descriptor, e.g. "U+20-7E, U+A0".
+   */
+  public String toUnicodeRange() {
+    final StringBuilder builder = new StringBuilder(ranges.length * 6);
+    for (int i=0; i<ranges.length; i+=2) {
+      if (i > 0) builder.append(", ");
+      builder.append("U+").append(Integer.toHexString(ranges[i]).toUpperCase());
+      if (ranges[i + 1] != ranges[i]) {
+        builder.append('-').append(Integer.toHexString(ranges[i + 1]).toUpperCase());
+      }
+    }
+    return builder.toString();
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) return true;
+    if (!(o instanceof CodepointSet)) return false;
+    final CodepointSet other = (CodepointSet)o;
+    return hash == other.hash && Arrays.equals(ranges, other.ranges);
+  }
+
+  @Override
+  public String toString() {
+    return encode();
+  }
+
+}
@@ -0,0 +1,827 @@
+package info.jdavid.font.subset;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import info.jdavid.font.subset.BrotliEncoder.BitWriter;
+import info.jdavid.font.subset.BrotliEncoder.PrefixCode;
+
+
+// An exhaustive deflate (RFC 1951) encoder in the style of zopfli, for data compressed once and
+// served many times: it is about 50 times slower than java.util.zip at level 9.
+// All the matches of each position are found once, and the parse of each block is the cheapest path
+// through the data with the symbol costs of the previous parse, over several iterations.
+// The data is split into blocks where the statistics change, and each block is written with its
+// own code, with the fixed code or stored, whichever is the smallest.
+final class DeflateEncoder {
+
+  private static final int WINDOW_SIZE = 32768;
+  private static final int MIN_MATCH = 3;
+  private static final int MAX_MATCH = 258;
+  private static final int HASH_BITS = 16;
+  private static final int MAX_CHAIN = 8192;
+  // The data is processed in parts of this size, which bounds the memory used for the matches.
+  private static final int MAX_PART_SIZE = 1 << 20;
+  private static final int MAX_BLOCKS = 15;
+  private static final int MIN_BLOCK_TOKENS = 10;
+  // Split points are searched exhaustively in ranges of tokens up to this size, and by narrowing
+  // down around the best of a few samples in larger ranges.
+  private static final int SPLIT_EXHAUSTIVE_SEARCH = 1024;
+  private static final int SPLIT_SAMPLES = 9;
+  // Blocks with fewer tokens also get a parse optimized for the fixed code.
+  private static final int MAX_FIXED_PARSE_TOKENS = 1000;
+  // Iterations after which the parse is perturbed when it stops improving.
+  private static final int RANDOMIZATION_DELAY = 5;
+  private static final int MAX_STORED_LENGTH = 65535;
+
+  private static final int STORED = 0;
+  private static final int FIXED = 1;
+  private static final int DYNAMIC = 2;
+
+  private static final int END_OF_BLOCK = 256;
+  private static final int LITERAL_LENGTH_ALPHABET = 286;
+  private static final int DISTANCE_ALPHABET = 30;
+  private static final int CODE_LENGTH_ALPHABET = 19;
+  private static final int MAX_CODE_LENGTH = 15;
+  private static final int MAX_CODE_LENGTH_CODE_LENGTH = 7;
+
+  private static final int REPEAT_PREVIOUS = 16;
+  private static final int REPEAT_ZERO = 17;
+  private static final int REPEAT_ZERO_LONG = 18;
+  // Flags for the code length symbols used to write the code lengths.
+  private static final int USE_REPEAT_PREVIOUS = 1;
+  private static final int USE_REPEAT_ZERO = 2;
+  private static final int USE_REPEAT_ZERO_LONG = 4;
+
+  private static final int[] CODE_LENGTH_ORDER = {
+    16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+  };
+  private static final int[] LENGTH_BASE = {
+    3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115,
+    131, 163, 195, 227, 258
+  };
+  private static final int[] LENGTH_EXTRA = {
+    0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+  };
+  private static final int[] DISTANCE_BASE = {
+    1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537,
+    2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577
+  };
+  private static final int[] DISTANCE_EXTRA = {
+    0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12,
+    13, 13
+  };
+  // Length code (without the 257 offset) for each match length.
+  private static final int[] LENGTH_CODES = lengthCodes();
+
+  private static final int[] FIXED_LITERAL_LENGTHS = fixedLiteralLengths();
+  private static final int[] FIXED_LITERAL_CODES = PrefixCode.canonicalCodes(FIXED_LITERAL_LENGTHS);
+  private static final int[] FIXED_DISTANCE_LENGTHS = fixedDistanceLengths();
+  private static final int[] FIXED_DISTANCE_CODES = PrefixCode.canonicalCodes(FIXED_DISTANCE_LENGTHS);
+  private static final double[] FIXED_LITERAL_COSTS = costs(FIXED_LITERAL_LENGTHS, LITERAL_LENGTH_ALPHABET);
+  private static final double[] FIXED_DISTANCE_COSTS = costs(FIXED_DISTANCE_LENGTHS, DISTANCE_ALPHABET);
+
+  private DeflateEncoder() {}
+
+  // Compresses input[offset..offset+length) to a zlib (RFC 1950) stream in output from outputOffset,
+  // and returns the compressed length. The output can't go past outputLimit. The iterations are the
+  // number of parse optimization passes for each block.
+  static int compress(final byte[] input, final int offset, final int length, final int iterations,
+                      final byte[] output, final int outputOffset, final int outputLimit) {
+    if (iterations < 1) throw new IllegalArgumentException();
+    final BitWriter out = new BitWriter(output, outputOffset, outputLimit);
+    // 32k window, maximum compression level.
+    out.write(8, 0x78);
+    out.write(8, 0xda);
+    final int to = offset + length;
+    for (int start=offset;;) {
+      final int end = Math.min(to, start + MAX_PART_SIZE);
+      deflate(out, input, offset, start, end, end == to, iterations);
+      if (end == to) break;
+      start = end;
+    }
+    if (out.position() > 8L * (2 + storedLength(length))) {
+      out.truncate(16);
+      writeStored(out, input, offset, length, true);
+    }
+    out.align();
+    final Adler32 adler32 = new Adler32();
+    adler32.update(input, offset, length);
+    final int checksum = (int)adler32.getValue();
+    for (int shift=24; shift>=0; shift-=8) out.write(8, checksum >>> shift);
+    return out.finish();
+  }
+
+  // Deflates data[start..end), with matches that can reference data from base.
+  private static void deflate(final BitWriter out, final byte[] data, final int base, final int start, final int end,
+                              final boolean last, final int iterations) {
+    final Matches matches = new Matches(data, base, start, end);
+    // The blocks are first split on a quick parse, then each block gets its own optimized parse.
+    final Tokens lazy = lazy(data, matches, start, end);
+    final int[] positions = lazy.positions(start, boundaries(split(lazy), lazy.size));
+    final Tokens tokens = new Tokens();
+    int[] blocks = new int[positions.length];
+    for (int i=1; i<positions.length; ++i) {
+      tokens.add(optimize(data, matches, positions[i - 1], positions[i], iterations));
+      blocks[i] = tokens.size;
+    }
+    // The statistics of the optimized parse can give better split points.
+    final int[] resplit = boundaries(split(tokens), tokens.size);
+    if (cost(tokens, resplit) < cost(tokens, blocks)) blocks = resplit;
+    int position = start;
+    for (int i=1; i<blocks.length; ++i) {
+      final int length = tokens.byteLength(blocks[i - 1], blocks[i]);
+      writeBlock(out, data, matches, position, position + length,
+                 tokens, blocks[i - 1], blocks[i], last && i == blocks.length - 1);
+      position += length;
+    }
+  }
+
+  private static void writeBlock(final BitWriter out, final byte[] data, final Matches matches,
+                                 final int start, final int end,
+                                 final Tokens tokens, final int from, final int to, final boolean last) {
+    final Histogram histogram = new Histogram(tokens, from, to);
+    final DynamicCode code = new DynamicCode(histogram);
+    final long dynamicBits = code.bits(histogram);
+    final long fixedBits = fixedBits(histogram);
+    final long storedBits = 8L * storedLength(end - start);
+    if (to - from < MAX_FIXED_PARSE_TOKENS) {
+      final int size = end - start + 1;
+      final Tokens fixed = cheapestPath(data, matches, start, end, FIXED_LITERAL_COSTS, FIXED_DISTANCE_COSTS,
+                                        new double[size], new int[size], new int[size]);
+      if (fixedBits(new Histogram(fixed, 0, fixed.size)) < Math.min(fixedBits, Math.min(dynamicBits, storedBits))) {
+        out.write(1, last ? 1 : 0);
+        out.write(2, FIXED);
+        writeTokens(out, fixed, 0, fixed.size,
+                    FIXED_LITERAL_LENGTHS, FIXED_LITERAL_CODES, FIXED_DISTANCE_LENGTHS, FIXED_DISTANCE_CODES);
+        return;
+      }
+    }
+    if (storedBits <= fixedBits && storedBits <= dynamicBits) {
+      writeStored(out, data, start, end - start, last);
+    }
+    else if (fixedBits <= dynamicBits) {
+      out.write(1, last ? 1 : 0);
+      out.write(2, FIXED);
+      writeTokens(out, tokens, from, to,
+                  FIXED_LITERAL_LENGTHS, FIXED_LITERAL_CODES, FIXED_DISTANCE_LENGTHS, FIXED_DISTANCE_CODES);
+    }
+    else {
+      out.write(1, last ? 1 : 0);
+      out.write(2, DYNAMIC);
+      code.writeTo(out);
+      writeTokens(out, tokens, from, to, code.literalLengths, PrefixCode.canonicalCodes(code.literalLengths),
+                  code.distanceLengths, PrefixCode.canonicalCodes(code.distanceLengths));
+    }
+  }
+
+  private static void writeTokens(final BitWriter out, final Tokens tokens, final int from, final int to,
+                                  final int[] literalLengths, final int[] literalCodes,
+                                  final int[] distanceLengths, final int[] distanceCodes) {
+    for (int i=from; i<to; ++i) {
+      final int length = tokens.lengths[i];
+      final int value = tokens.values[i];
+      if (length == 0) {
+        out.write(literalLengths[value], literalCodes[value]);
+        continue;
+      }
+      final int lengthCode = LENGTH_CODES[length];
+      final int symbol = END_OF_BLOCK + 1 + lengthCode;
+      out.write(literalLengths[symbol], literalCodes[symbol]);
+      out.write(LENGTH_EXTRA[lengthCode], length - LENGTH_BASE[lengthCode]);
+      final int distanceCode = distanceCode(value);
+      out.write(distanceLengths[distanceCode], distanceCodes[distanceCode]);
+      out.write(DISTANCE_EXTRA[distanceCode], value - DISTANCE_BASE[distanceCode]);
+    }
+    out.write(literalLengths[END_OF_BLOCK], literalCodes[END_OF_BLOCK]);
+  }
+
+  private static void writeStored(final BitWriter out, final byte[] data, final int offset, final int length,
+                                  final boolean last) {
+    final int end = offset + length;
+    int position = offset;
+    do {
+      final int size = Math.min(MAX_STORED_LENGTH, end - position);
+      out.write(1, last && position + size == end ? 1 : 0);
+      out.write(2, STORED);
+      out.align();
+      out.write(16, size);
+      out.write(16, ~size);
+      out.write(data, position, size);
+      position += size;
+    }
+    while (position < end);
+  }
+
+  // Upper bound for the size of stored blocks, in bytes.
+  private static int storedLength(final int length) {
+    return length + 5 * Math.max(1, (length + MAX_STORED_LENGTH - 1) / MAX_STORED_LENGTH);
+  }
+
+  private static long fixedBits(final Histogram histogram) {
+    long bits = 3 + histogram.extraBits;
+    for (int i=0; i<LITERAL_LENGTH_ALPHABET; ++i) {
+      bits += (long)histogram.literalLengths[i] * FIXED_LITERAL_LENGTHS[i];
+    }
+    for (int i=0; i<DISTANCE_ALPHABET; ++i) bits += (long)histogram.distances[i] * FIXED_DISTANCE_LENGTHS[i];
+    return bits;
+  }
+
+  // Size in bits of a range of tokens as a single block, with the best block type.
+  private static long cost(final Tokens tokens, final int from, final int to) {
+    final Histogram histogram = new Histogram(tokens, from, to);
+    final long storedBits = 8L * storedLength(tokens.byteLength(from, to));
+    return Math.min(storedBits, Math.min(fixedBits(histogram), new DynamicCode(histogram).bits(histogram)));
+  }
+
+  private static long cost(final Tokens tokens, final int[] blocks) {
+    long bits = 0;
+    for (int i=1; i<blocks.length; ++i) bits += cost(tokens, blocks[i - 1], blocks[i]);
+    return bits;
+  }
+
+  private static int[] boundaries(final int[] points, final int size) {
+    final int[] boundaries = new int[points.length + 2];
+    System.arraycopy(points, 0, boundaries, 1, points.length);
+    boundaries[points.length + 1] = size;
+    return boundaries;
+  }
+
+  // Token indexes where splitting the tokens into blocks makes them smaller. The block that gets
+  // split next is the largest one that may still be split.
+  private static int[] split(final Tokens tokens) {
+    int[] points = new int[0];
+    final boolean[] done = new boolean[tokens.size + 1];
+    int start = 0;
+    int end = tokens.size;
+    while (points.length < MAX_BLOCKS - 1 && end - start >= MIN_BLOCK_TOKENS) {
+      final int point = minimum(tokens, start, end);
+      if (point > start + 1 && point < end &&
+          cost(tokens, start, point) + cost(tokens, point, end) < cost(tokens, start, end)) {
+        points = Arrays.copyOf(points, points.length + 1);
+        points[points.length - 1] = point;
+        Arrays.sort(points);
+      }
+      else {
+        done[start] = true;
+      }
+      int largest = -1;
+      start = end = 0;
+      for (int i=0; i<=points.length; ++i) {
+        final int from = i == 0 ? 0 : points[i - 1];
+        final int to = i == points.length ? tokens.size : points[i];
+        if (!done[from] && to - from > largest) {
+          largest = to - from;
+          start = from;
+          end = to;
+        }
+      }
+    }
+    return points;
+  }
+
+  // The split point of a range of tokens that gives the smallest blocks.
+  private static int minimum(final Tokens tokens, final int start, final int end) {
+    int from = start + 1;
+    int to = end;
+    if (to - from < SPLIT_EXHAUSTIVE_SEARCH) {
+      int best = from;
+      long bestCost = Long.MAX_VALUE;
+      for (int point=from; point<to; ++point) {
+        final long cost = cost(tokens, start, point) + cost(tokens, point, end);
+        if (cost < bestCost) {
+          best = point;
+          bestCost = cost;
+        }
+      }
+      return best;
+    }
+    final int[] points = new int[SPLIT_SAMPLES];
+    final long[] costs = new long[SPLIT_SAMPLES];
+    int best = from;
+    long bestCost = Long.MAX_VALUE;
+    while (to - from > SPLIT_SAMPLES) {
+      int index = 0;
+      for (int i=0; i<SPLIT_SAMPLES; ++i) {
+        points[i] = from + (i + 1) * ((to - from) / (SPLIT_SAMPLES + 1));
+        costs[i] = cost(tokens, start, points[i]) + cost(tokens, points[i], end);
+        if (costs[i] < costs[index]) index = i;
+      }
+      if (costs[index] > bestCost) break;
+      if (index > 0) from = points[index - 1];
+      if (index < SPLIT_SAMPLES - 1) to = points[index + 1];
+      best = points[index];
+      bestCost = costs[index];
+    }
+    return best;
+  }
+
+  // Greedy parse with lazy matching.
+  private static Tokens lazy(final byte[] data, final Matches matches, final int from, final int to) {
+    final Tokens tokens = new Tokens();
+    for (int i=from; i<to;) {
+      final int match = matches.longest(i, to);
+      final int length = match >>> 16;
+      if (length >= MIN_MATCH && (i + 1 == to || matches.longest(i + 1, to) >>> 16 <= length)) {
+        tokens.add(length, match & 0xffff);
+        i += length;
+      }
+      else {
+        tokens.add(0, data[i++] & 0xff);
+      }
+    }
+    return tokens;
+  }
+
+  // The best of several parses, each one the cheapest path through the data with the symbol costs
+  // of the previous one. When the parse stops improving, the costs are perturbed to get out of
+  // the local minimum (with a fixed seed, so that the output is always the same).
+  private static Tokens optimize(final byte[] data, final Matches matches, final int from, final int to,
+                                 final int iterations) {
+    final Random random = new Random(0);
+    final double[] literalCosts = new double[LITERAL_LENGTH_ALPHABET];
+    final double[] distanceCosts = new double[DISTANCE_ALPHABET];
+    final double[] costs = new double[to - from + 1];
+    final int[] lengths = new int[to - from + 1];
+    final int[] distances = new int[to - from + 1];
+    Statistics statistics = new Statistics(lazy(data, matches, from, to));
+    Statistics bestStatistics = statistics;
+    Tokens best = null;
+    long bestCost = Long.MAX_VALUE;
+    long lastCost = -1;
+    boolean randomized = false;
+    for (int i=0; i<iterations; ++i) {
+      statistics.costs(literalCosts, distanceCosts);
+      final Tokens tokens =
+        cheapestPath(data, matches, from, to, literalCosts, distanceCosts, costs, lengths, distances);
+      final Histogram histogram = new Histogram(tokens, 0, tokens.size);
+      final long cost = new DynamicCode(histogram).bits(histogram);
+      if (cost < bestCost) {
+        best = tokens;
+        bestCost = cost;
+        bestStatistics = statistics;
+      }
+      final Statistics previous = statistics;
+      statistics = new Statistics(tokens);
+      if (randomized) statistics = statistics.add(previous, 0.5);
+      if (i > RANDOMIZATION_DELAY && cost == lastCost) {
+        statistics = bestStatistics.randomized(random);
+        randomized = true;
+      }
+      lastCost = cost;
+    }
+    return best;
+  }
+
+  // The parse with the smallest cost for the given symbol costs (without the extra bits).
+  private static Tokens cheapestPath(final byte[] data, final Matches matches, final int from, final int to,
+                                     final double[] literalCosts, final double[] symbolDistanceCosts,
+                                     final double[] costs, final int[] lengths, final int[] distances) {
+    final double[] lengthCosts = new double[MAX_MATCH + 1];
+    for (int length=MIN_MATCH; length<=MAX_MATCH; ++length) {
+      final int code = LENGTH_CODES[length];
+      lengthCosts[length] = literalCosts[END_OF_BLOCK + 1 + code] + LENGTH_EXTRA[code];
+    }
+    final double[] distanceCosts = new double[DISTANCE_ALPHABET];
+    for (int code=0; code<DISTANCE_ALPHABET; ++code) {
+      distanceCosts[code] = symbolDistanceCosts[code] + DISTANCE_EXTRA[code];
+    }
+    final int size = to - from;
+    Arrays.fill(costs, 0, size + 1, Double.POSITIVE_INFINITY);
+    costs[0] = 0;
+    for (int k=0; k<size; ++k) {
+      final int i = from + k;
+      final double cost = costs[k];
+      final double literal = cost + literalCosts[data[i] & 0xff];
+      if (literal < costs[k + 1]) {
+        costs[k + 1] = literal;
+        lengths[k + 1] = 1;
+      }
+      final int limit = size - k;
+      int previous = MIN_MATCH - 1;
+      for (int e=matches.start(i), end=matches.start(i + 1); e<end && previous<limit; ++e) {
+        final int match = matches.entries[e];
+        final int length = Math.min(match >>> 16, limit);
+        final int distance = match & 0xffff;
+        final double base = cost + distanceCosts[distanceCode(distance)];
+        for (int l=previous+1; l<=length; ++l) {
+          final double c = base + lengthCosts[l];
+          if (c < costs[k + l]) {
+            costs[k + l] = c;
+            lengths[k + l] = l;
+            distances[k + l] = distance;
+          }
+        }
+        previous = length;
+      }
+    }
+    int count = 0;
+    for (int k=size; k>0; k-=lengths[k]) ++count;
+    final Tokens tokens = new Tokens(count);
+    tokens.size = count;
+    for (int k=size, i=count-1; k>0; k-=lengths[k], --i) {
+      if (lengths[k] == 1) {
+        tokens.lengths[i] = 0;
+        tokens.values[i] = data[from + k - 1] & 0xff;
+      }
+      else {
+        tokens.lengths[i] = lengths[k];
+        tokens.values[i] = distances[k];
+      }
+    }
+    return tokens;
+  }
+
+  private static int distanceCode(final int distance) {
+    if (distance <= 4) return distance - 1;
+    final int log = 31 - Integer.numberOfLeadingZeros(distance - 1);
+    return 2 * log + (((distance - 1) >>> (log - 1)) & 1);
+  }
+
+  private static int[] lengthCodes() {
+    final int[] codes = new int[MAX_MATCH + 1];
+    for (int code=0; code<LENGTH_BASE.length - 1; ++code) {
+      for (int i=0; i<1<<LENGTH_EXTRA[code]; ++i) codes[LENGTH_BASE[code] + i] = code;
+    }
+    codes[MAX_MATCH] = LENGTH_BASE.length - 1;
+    return codes;
+  }
+
+  private static int[] fixedLiteralLengths() {
+    final int[] lengths = new int[288];
+    Arrays.fill(lengths, 0, 144, 8);
+    Arrays.fill(lengths, 144, 256, 9);
+    Arrays.fill(lengths, 256, 280, 7);
+    Arrays.fill(lengths, 280, 288, 8);
+    return lengths;
+  }
+
+  private static int[] fixedDistanceLengths() {
+    final int[] lengths = new int[DISTANCE_ALPHABET];
+    Arrays.fill(lengths, 5);
+    return lengths;
+  }
+
+  private static double[] costs(final int[] lengths, final int count) {
+    final double[] costs = new double[count];
+    for (int i=0; i<count; ++i) costs[i] = lengths[i];
+    return costs;
+  }
+
+  // Length limited Huffman code lengths. Codes get at least two symbols: zlib rejects incomplete
+  // codes, and some decoders can't handle a distance code with a single symbol.
+  private static int[] codeLengths(final int[] counts, final int maxLength) {
+    final int[] adjusted = counts.clone();
+    int used = 0;
+    for (final int count: adjusted) if (count > 0) ++used;
+    for (int i=0; used<2; ++i) {
+      if (adjusted[i] == 0) {
+        adjusted[i] = 1;
+        ++used;
+      }
+    }
+    final int[] lengths = new int[counts.length];
+    PrefixCode.huffmanLengths(adjusted, maxLength, lengths);
+    return lengths;
+  }
+
+  // Literals (length 0 and the byte value) and matches (length and distance).
+  static final class Tokens {
+    int[] lengths;
+    int[] values;
+    int size = 0;
+
+    Tokens() {
+      this(1024);
+    }
+
+    Tokens(final int capacity) {
+      lengths = new int[Math.max(capacity, 16)];
+      values = new int[lengths.length];
+    }
+
+    void add(final int length, final int value) {
+      if (size == lengths.length) {
+        lengths = Arrays.copyOf(lengths, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      lengths[size] = length;
+      values[size++] = value;
+    }
+
+    void add(final Tokens tokens) {
+      if (size + tokens.size > lengths.length) {
+        lengths = Arrays.copyOf(lengths, Math.max(size + tokens.size, size * 2));
+        values = Arrays.copyOf(values, lengths.length);
+      }
+      System.arraycopy(tokens.lengths, 0, lengths, size, tokens.size);
+      System.arraycopy(tokens.values, 0, values, size, tokens.size);
+      size += tokens.size;
+    }
+
+    int byteLength(final int from, final int to) {
+      int length = 0;
+      for (int i=from; i<to; ++i) length += lengths[i] == 0 ? 1 : lengths[i];
+      return length;
+    }
+
+    // The data positions of token indexes.
+    int[] positions(final int start, final int[] indexes) {
+      final int[] positions = new int[indexes.length];
+      for (int i=0; i<indexes.length; ++i) {
+        positions[i] = (i == 0 ? start : positions[i - 1]) + byteLength(i == 0 ? 0 : indexes[i - 1], indexes[i]);
+      }
+      return positions;
+    }
+  }
+
+  // Symbol counts of a range of tokens, with the end of block symbol.
+  static final class Histogram {
+    final int[] literalLengths = new int[LITERAL_LENGTH_ALPHABET];
+    final int[] distances = new int[DISTANCE_ALPHABET];
+    long extraBits = 0;
+
+    Histogram(final Tokens tokens, final int from, final int to) {
+      for (int i=from; i<to; ++i) {
+        final int length = tokens.lengths[i];
+        if (length == 0) {
+          ++literalLengths[tokens.values[i]];
+        }
+        else {
+          final int lengthCode = LENGTH_CODES[length];
+          final int distanceCode = distanceCode(tokens.values[i]);
+          ++literalLengths[END_OF_BLOCK + 1 + lengthCode];
+          ++distances[distanceCode];
+          extraBits += LENGTH_EXTRA[lengthCode] + DISTANCE_EXTRA[distanceCode];
+        }
+      }
+      literalLengths[END_OF_BLOCK] = 1;
+    }
+  }
+
+  // Symbol frequencies that set the costs of the symbols for the next parse.
+  static final class Statistics {
+    final double[] literalLengths = new double[LITERAL_LENGTH_ALPHABET];
+    final double[] distances = new double[DISTANCE_ALPHABET];
+
+    private Statistics() {}
+
+    Statistics(final Tokens tokens) {
+      final Histogram histogram = new Histogram(tokens, 0, tokens.size);
+      for (int i=0; i<LITERAL_LENGTH_ALPHABET; ++i) literalLengths[i] = histogram.literalLengths[i];
+      for (int i=0; i<DISTANCE_ALPHABET; ++i) distances[i] = histogram.distances[i];
+    }
+
+    Statistics add(final Statistics statistics, final double weight) {
+      final Statistics sum = new Statistics();
+      for (int i=0; i<LITERAL_LENGTH_ALPHABET; ++i) {
+        sum.literalLengths[i] = literalLengths[i] + weight * statistics.literalLengths[i];
+      }
+      for (int i=0; i<DISTANCE_ALPHABET; ++i) sum.distances[i] = distances[i] + weight * statistics.distances[i];
+      sum.literalLengths[END_OF_BLOCK] = 1;
+      return sum;
+    }
+
+    // Replaces about a third of the frequencies with other frequencies.
+    Statistics randomized(final Random random) {
+      final Statistics randomized = new Statistics();
+      randomize(literalLengths, randomized.literalLengths, random);
+      randomize(distances, randomized.distances, random);
+      randomized.literalLengths[END_OF_BLOCK] = 1;
+      return randomized;
+    }
+
+    private static void randomize(final double[] frequencies, final double[] randomized, final Random random) {
+      System.arraycopy(frequencies, 0, randomized, 0, frequencies.length);
+      for (int i=0; i<randomized.length; ++i) {
+        if (random.nextInt(3) == 0) randomized[i] = randomized[random.nextInt(randomized.length)];
+      }
+    }
+
+    // Cost of each symbol in bits, without the extra bits: the entropy of the frequencies.
+    // Symbols that weren't used cost as much as a symbol used once.
+    void costs(final double[] literalCosts, final double[] distanceCosts) {
+      entropy(literalLengths, literalCosts);
+      entropy(distances, distanceCosts);
+    }
+
+    private static void entropy(final double[] frequencies, final double[] costs) {
+      double sum = 0;
+      for (final double frequency: frequencies) sum += frequency;
+      final double log = log2(sum == 0 ? frequencies.length : sum);
+      for (int i=0; i<frequencies.length; ++i) {
+        costs[i] = frequencies[i] == 0 ? log : Math.max(0, log - log2(frequencies[i]));
+      }
+    }
+
+    private static double log2(final double value) {
+      return Math.log(value) / Math.log(2);
+    }
+  }
+
+  // Code lengths of a dynamic block, and the cheapest way to write them: with or without each of the
+  // three repeat symbols.
+  static final class DynamicCode {
+    final int[] literalLengths;
+    final int[] distanceLengths;
+    private final int literalCount;
+    private final int distanceCount;
+    private final int flags;
+    private final int[] codeLengthLengths;
+    private final int codeLengthCount;
+    private final long headerBits;
+
+    DynamicCode(final Histogram histogram) {
+      literalLengths = codeLengths(histogram.literalLengths, MAX_CODE_LENGTH);
+      distanceLengths = codeLengths(histogram.distances, MAX_CODE_LENGTH);
+      literalCount = Math.max(END_OF_BLOCK + 1, count(literalLengths));
+      distanceCount = Math.max(1, count(distanceLengths));
+      final int[] lengths = lengths();
+      final int[] tokens = new int[lengths.length];
+      final int[] extras = new int[lengths.length];
+      int bestFlags = 0;
+      int[] bestLengths = null;
+      int bestCount = 0;
+      long bestBits = Long.MAX_VALUE;
+      for (int flags=0; flags<8; ++flags) {
+        final int tokenCount = tokenize(lengths, flags, tokens, extras);
+        final int[] counts = new int[CODE_LENGTH_ALPHABET];
+        for (int i=0; i<tokenCount; ++i) ++counts[tokens[i]];
+        final int[] codeLengthLengths = codeLengths(counts, MAX_CODE_LENGTH_CODE_LENGTH);
+        int count = CODE_LENGTH_ALPHABET;
+        while (count > 4 && codeLengthLengths[CODE_LENGTH_ORDER[count - 1]] == 0) --count;
+        long bits = 14 + 3 * count;
+        for (int i=0; i<CODE_LENGTH_ALPHABET; ++i) bits += (long)counts[i] * codeLengthLengths[i];
+        bits += 2L * counts[REPEAT_PREVIOUS] + 3L * counts[REPEAT_ZERO] + 7L * counts[REPEAT_ZERO_LONG];
+        if (bits < bestBits) {
+          bestFlags = flags;
+          bestLengths = codeLengthLengths;
+          bestCount = count;
+          bestBits = bits;
+        }
+      }
+      flags = bestFlags;
+      codeLengthLengths = bestLengths;
+      codeLengthCount = bestCount;
+      headerBits = bestBits;
+    }
+
+    // Size of the block in bits.
+    long bits(final Histogram histogram) {
+      long bits = 3 + headerBits + histogram.extraBits;
+      for (int i=0; i<LITERAL_LENGTH_ALPHABET; ++i) bits += (long)histogram.literalLengths[i] * literalLengths[i];
+      for (int i=0; i<DISTANCE_ALPHABET; ++i) bits += (long)histogram.distances[i] * distanceLengths[i];
+      return bits;
+    }
+
+    void writeTo(final BitWriter out) {
+      out.write(5, literalCount - END_OF_BLOCK - 1);
+      out.write(5, distanceCount - 1);
+      out.write(4, codeLengthCount - 4);
+      for (int i=0; i<codeLengthCount; ++i) out.write(3, codeLengthLengths[CODE_LENGTH_ORDER[i]]);
+      final int[] lengths = lengths();
+      final int[] tokens = new int[lengths.length];
+      final int[] extras = new int[lengths.length];
+      final int tokenCount = tokenize(lengths, flags, tokens, extras);
+      final int[] codes = PrefixCode.canonicalCodes(codeLengthLengths);
+      for (int i=0; i<tokenCount; ++i) {
+        final int token = tokens[i];
+        out.write(codeLengthLengths[token], codes[token]);
+        if (token == REPEAT_PREVIOUS) out.write(2, extras[i]);
+        else if (token == REPEAT_ZERO) out.write(3, extras[i]);
+        else if (token == REPEAT_ZERO_LONG) out.write(7, extras[i]);
+      }
+    }
+
+    // The literal/length and distance code lengths, which are written as a single sequence.
+    private int[] lengths() {
+      final int[] lengths = new int[literalCount + distanceCount];
+      System.arraycopy(literalLengths, 0, lengths, 0, literalCount);
+      System.arraycopy(distanceLengths, 0, lengths, literalCount, distanceCount);
+      return lengths;
+    }
+
+    private static int count(final int[] lengths) {
+      int count = lengths.length;
+      while (count > 0 && lengths[count - 1] == 0) --count;
+      return count;
+    }
+
+    // Code lengths as code length symbols, with the repeat symbols allowed by the flags.
+    private static int tokenize(final int[] lengths, final int flags, final int[] tokens, final int[] extras) {
+      final boolean repeatPrevious = (flags & USE_REPEAT_PREVIOUS) != 0;
+      final boolean repeatZero = (flags & USE_REPEAT_ZERO) != 0;
+      final boolean repeatZeroLong = (flags & USE_REPEAT_ZERO_LONG) != 0;
+      int size = 0;
+      for (int i=0; i<lengths.length;) {
+        final int value = lengths[i];
+        int run = 1;
+        if (repeatPrevious || (value == 0 && (repeatZero || repeatZeroLong))) {
+          while (i + run < lengths.length && lengths[i + run] == value) ++run;
+        }
+        i += run;
+        if (value == 0 && run >= 3) {
+          if (repeatZeroLong) {
+            while (run >= 11) {
+              final int count = Math.min(run, 138);
+              tokens[size] = REPEAT_ZERO_LONG;
+              extras[size++] = count - 11;
+              run -= count;
+            }
+          }
+          if (repeatZero) {
+            while (run >= 3) {
+              final int count = Math.min(run, 10);
+              tokens[size] = REPEAT_ZERO;
+              extras[size++] = count - 3;
+              run -= count;
+            }
+          }
+        }
+        if (repeatPrevious && run >= 4) {
+          tokens[size++] = value;
+          --run;
+          while (run >= 3) {
+            final int count = Math.min(run, 6);
+            tokens[size] = REPEAT_PREVIOUS;
+            extras[size++] = count - 3;
+            run -= count;
+          }
+        }
+        for (; run>0; --run) tokens[size++] = value;
+      }
+      return size;
+    }
+  }
+
+  // For each position, the matches that are longer than all the closer ones, from the closest:
+  // the smallest distance for a length is the one of the first match that is at least as long.
+  static final class Matches {
+    private final int from;
+    private final int[] starts;
+    int[] entries;
+
+    // Matches (length << 16 | distance) for the positions from "from" to "to", within that range.
+    // They can start up to a window before "from", but not before "base".
+    Matches(final byte[] data, final int base, final int from, final int to) {
+      this.from = from;
+      starts = new int[to - from + 1];
+      entries = new int[Math.max(16, 2 * (to - from))];
+      final int origin = Math.max(base, from - WINDOW_SIZE);
+      final int[] head = new int[1 << HASH_BITS];
+      Arrays.fill(head, -1);
+      final int[] previous = new int[to - origin];
+      int size = 0;
+      for (int i=origin; i<to; ++i) {
+        if (i >= from) starts[i - from] = size;
+        if (i + MIN_MATCH > to) continue;
+        final int hash = hash(data, i);
+        if (i >= from) {
+          final int limit = Math.min(MAX_MATCH, to - i);
+          int best = MIN_MATCH - 1;
+          int depth = 0;
+          for (int candidate=head[hash];
+               candidate >= 0 && i - candidate <= WINDOW_SIZE && depth < MAX_CHAIN;
+               candidate=previous[candidate - origin], ++depth) {
+            if (data[candidate + best] != data[i + best]) continue;
+            int length = 0;
+            while (length < limit && data[candidate + length] == data[i + length]) ++length;
+            if (length > best) {
+              if (size == entries.length) entries = Arrays.copyOf(entries, size * 2);
+              entries[size++] = (length << 16) | (i - candidate);
+              best = length;
+              if (length == limit) break;
+            }
+          }
+        }
+        previous[i - origin] = head[hash];
+        head[hash] = i;
+      }
+      starts[to - from] = size;
+    }
+
+    int start(final int position) {
+      return starts[position - from];
+    }
+
+    // The longest match at the position that ends before "to", with the smallest distance (0 if none).
+    int longest(final int position, final int to) {
+      final int limit = to - position;
+      int longest = 0;
+      for (int e=start(position), end=start(position + 1); e<end; ++e) {
+        final int match = entries[e];
+        if (match >>> 16 >= limit) return (limit << 16) | (match & 0xffff);
+        longest = match;
+      }
+      return longest;
+    }
+
+    private static int hash(final byte[] data, final int position) {
+      final int value = ((data[position] & 0xff) << 16) | ((data[position + 1] & 0xff) << 8) |
+                        (data[position + 2] & 0xff);
+      return (value * 0x9e3779b1) >>> (32 - HASH_BITS);
+    }
+  }
+
+}
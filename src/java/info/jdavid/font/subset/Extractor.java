@@ -1,139 +1,491 @@
 package info.jdavid.font.subset;
 
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.IntFunction;
 
 import com.google.typography.font.sfntly.Font;
 import com.google.typography.font.sfntly.FontFactory;
 import com.google.typography.font.sfntly.Tag;
-import com.google.typography.font.sfntly.table.core.CMap;
+import com.google.typography.font.sfntly.table.Table;
 import com.google.typography.font.sfntly.table.core.CMapTable;
-import com.google.typography.font.sfntly.table.truetype.Glyph;
-import com.google.typography.font.sfntly.table.truetype.GlyphTable;
-import com.google.typography.font.sfntly.table.truetype.LocaTable;
-import com.google.typography.font.tools.conversion.woff.WoffWriter;
-import com.google.typography.font.tools.sfnttool.GlyphCoverage;
 import com.google.typography.font.tools.subsetter.HintStripper;
 import com.google.typography.font.tools.subsetter.RenumberingSubsetter;
 import com.google.typography.font.tools.subsetter.Subsetter;
 
 
+/**
+ * Font handle. The font is parsed only once and never modified afterwards, so a single instance
+ * can be shared and used by many threads concurrently.
+ * Fonts given as byte arrays are parsed by the constructor, fonts read from files are memory
+ * mapped and only parsed on first use (sfntly only parses byte arrays, so the file is copied to
+ * the heap at that point). For collections, this is the first face; the other faces are available
+ * through {@link FontCollection}.
+ */
 public class Extractor {
 
   private final FontFactory factory = FontFactory.getInstance();
-  private final Font font;
+  private final FontCollection collection;
+  private final int index;
+  private final SubsetCache cache;
+  private final Object lock = new Object();
+  private volatile Font font = null;
+  private volatile Font base = null;
+  private volatile FontIndex fontIndex = null;
 
-  private static Set<Integer> GLYPH_REMOVABLE_TABLES = new HashSet<>(Arrays.asList(
+  private static final Set<Integer> GLYPH_REMOVABLE_TABLES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
     Tag.GDEF, Tag.GPOS, Tag.GSUB, Tag.kern, Tag.hdmx, Tag.vmtx, Tag.VDMX, Tag.LTSH, Tag.DSIG,
     Tag.intValue(new byte[] { 'm', 'o', 'r', 't' }),
     Tag.intValue(new byte[] { 'm', 'o', 'r', 'x' })
-  ));
+  )));
 
-  private static Set<Integer> HINT_REMOVABLE_TABLES = new HashSet<>(Arrays.asList(
+  private static final Set<Integer> HINT_REMOVABLE_TABLES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
     Tag.fpgm, Tag.prep, Tag.cvt
-  ));
+  )));
+
+  private static final Set<Integer> REMOVABLE_TABLES = union(GLYPH_REMOVABLE_TABLES, HINT_REMOVABLE_TABLES);
+
+  private static Set<Integer> union(final Set<Integer> first, final Set<Integer> second) {
+    final Set<Integer> set = new HashSet<>(first);
+    set.addAll(second);
+    return Collections.unmodifiableSet(set);
+  }
 
   public Extractor(final byte[] bytes) throws IOException {
-    font = factory.loadFonts(bytes)[0];
+    this(bytes, null);
   }
 
-  private Font strip(final String str) throws IOException {
-    final List<CMapTable.CMapId> cmapIds = new ArrayList<>();
-    cmapIds.add(CMapTable.CMapId.WINDOWS_BMP);
-    final Font subset;
-    if (str != null) {
-      final Subsetter glyphSubsetter = new RenumberingSubsetter(font, factory);
-      glyphSubsetter.setCMaps(cmapIds, 1);
-      glyphSubsetter.setGlyphs(GlyphCoverage.getGlyphCoverage(font, str));
-      glyphSubsetter.setRemoveTables(GLYPH_REMOVABLE_TABLES);
-      subset = glyphSubsetter.subset().build();
+  public Extractor(final byte[] bytes, final SubsetCache cache) throws IOException {
+    this(new FontCollection(bytes, cache), 0);
+    font();
+  }
+
+  public Extractor(final Path path) throws IOException {
+    this(path, null);
+  }
+
+  public Extractor(final Path path, final SubsetCache cache) throws IOException {
+    this(new FontCollection(path, cache), 0);
+  }
+
+  public Extractor(final FileChannel channel) throws IOException {
+    this(channel, null);
+  }
+
+  public Extractor(final FileChannel channel, final SubsetCache cache) throws IOException {
+    this(new FontCollection(channel, cache), 0);
+  }
+
+  Extractor(final FontCollection collection, final int index) {
+    this.collection = collection;
+    this.index = index;
+    this.cache = collection.cache();
+  }
+
+  private Font font() throws IOException {
+    Font loaded = font;
+    if (loaded == null) font = loaded = collection.font(index);
+    return loaded;
+  }
+
+  // The font without hints and without the tables that would be invalidated by a subset.
+  // None of this depends on the subset, so it is done only once, on first use.
+  private Font base() throws IOException {
+    Font stripped = base;
+    if (stripped == null) {
+      synchronized (lock) {
+        stripped = base;
+        if (stripped == null) {
+          final Subsetter hintSubsetter = new HintStripper(font(), factory);
+          hintSubsetter.setRemoveTables(REMOVABLE_TABLES);
+          base = stripped = hintSubsetter.subset().build();
+        }
+      }
     }
-    else {
-      final Subsetter glyphSubsetter = new HintStripper(font, factory);
-      glyphSubsetter.setRemoveTables(GLYPH_REMOVABLE_TABLES);
-      subset = glyphSubsetter.subset().build();
+    return stripped;
+  }
+
+  // Only reads from the shared fonts: every call uses its own subsetter and builder.
+  private Font strip(final CodepointSet codepoints, final Options options) throws IOException {
+    final Font stripped = base();
+    if (codepoints == null) return stripped;
+    if (options.preserveGlyphIds() && stripped.hasTable(Tag.glyf)) {
+      return PreservingSubsetter.subset(factory, stripped, fontIndex(), codepoints);
     }
-    final Subsetter hintSubsetter = new HintStripper(subset, factory);
-    hintSubsetter.setRemoveTables(HINT_REMOVABLE_TABLES);
-    return hintSubsetter.subset().build();
+    final List<CMapTable.CMapId> cmapIds = new ArrayList<>();
+    cmapIds.add(CMapTable.CMapId.WINDOWS_BMP);
+    final Subsetter glyphSubsetter = new RenumberingSubsetter(stripped, factory);
+    glyphSubsetter.setCMaps(cmapIds, 1);
+    glyphSubsetter.setGlyphs(glyphCoverage(codepoints));
+    return glyphSubsetter.subset().build();
+  }
+
+  // Same as sfntly's GlyphCoverage, but from the precomputed index, and codepoints outside of the
+  // BMP are looked up as well.
+  private List<Integer> glyphCoverage(final CodepointSet codepoints) throws IOException {
+    return fontIndex().closure(codepoints);
+  }
+
+  private static CodepointSet codepoints(final String str) {
+    return str == null ? null : CodepointSet.of(str);
+  }
+
+  /**
+   * Converts the whole font to woff, without subsetting it.
+   */
+  public byte[] woff() throws IOException {
+    return woff((CodepointSet)null);
   }
 
   public byte[] woff(final String str) throws IOException {
-    //-w -h -e -b64 "abcdef" font.ttf
-    // woff = true, strip = true, encode = true
-    final Font stripped = strip(str);
-    final ByteArrayOutputStream out = new ByteArrayOutputStream();
-    new WoffWriter().convert(stripped).copyTo(out);
-    out.close();
-    return out.toByteArray();
+    return woff(codepoints(str));
+  }
+
+  public byte[] woff(final CodepointSet codepoints) throws IOException {
+    return woff(codepoints, Options.DEFAULT);
+  }
+
+  public byte[] woff(final CodepointSet codepoints, final Options options) throws IOException {
+    return cached(codepoints, Format.WOFF, options);
+  }
+
+  public void woff(final CodepointSet codepoints, final OutputStream out) throws IOException {
+    woff(codepoints, Options.DEFAULT, out);
+  }
+
+  public void woff(final CodepointSet codepoints, final Options options,
+                   final OutputStream out) throws IOException {
+    write(codepoints, Format.WOFF, options, out);
+  }
+
+  public void woff(final CodepointSet codepoints, final WritableByteChannel channel) throws IOException {
+    woff(codepoints, Options.DEFAULT, channel);
+  }
+
+  public void woff(final CodepointSet codepoints, final Options options,
+                   final WritableByteChannel channel) throws IOException {
+    woff(codepoints, options, Channels.newOutputStream(channel));
+  }
+
+  /**
+   * Converts the whole font to woff2, without subsetting it.
+   */
+  public byte[] woff2() throws IOException {
+    return woff2((CodepointSet)null);
   }
 
   public byte[] woff2(final String str) throws IOException {
-    //-w -h -e -b64 "abcdef" font.ttf
-    // woff = true, strip = true, encode = true
-    final Font stripped = strip(str);
-    final ByteArrayOutputStream out = new ByteArrayOutputStream();
-    new Woff2Writer().convert(stripped).copyTo(out);
-    out.close();
-    return out.toByteArray();
-  }
-
-  private static CMap getBestCMap(CMapTable cmapTable) {
-    for (CMap cmap : cmapTable) {
-      if (cmap.format() == CMap.CMapFormat.Format12.value()) {
-        return cmap;
+    return woff2(codepoints(str));
+  }
+
+  public byte[] woff2(final CodepointSet codepoints) throws IOException {
+    return woff2(codepoints, Options.DEFAULT);
+  }
+
+  public byte[] woff2(final CodepointSet codepoints, final Options options) throws IOException {
+    return cached(codepoints, Format.WOFF2, options);
+  }
+
+  public void woff2(final CodepointSet codepoints, final OutputStream out) throws IOException {
+    woff2(codepoints, Options.DEFAULT, out);
+  }
+
+  public void woff2(final CodepointSet codepoints, final Options options,
+                    final OutputStream out) throws IOException {
+    write(codepoints, Format.WOFF2, options, out);
+  }
+
+  public void woff2(final CodepointSet codepoints, final WritableByteChannel channel) throws IOException {
+    woff2(codepoints, Options.DEFAULT, channel);
+  }
+
+  public void woff2(final CodepointSet codepoints, final Options options,
+                    final WritableByteChannel channel) throws IOException {
+    woff2(codepoints, options, Channels.newOutputStream(channel));
+  }
+
+  private byte[] cached(final CodepointSet codepoints, final Format format,
+                        final Options options) throws IOException {
+    return cache == null ? encode(codepoints, format, options) : shared(codepoints, format, options).clone();
+  }
+
+  private SubsetCache.Key key(final CodepointSet codepoints, final Format format,
+                              final Options options) throws IOException {
+    return new SubsetCache.Key(collection.digest(index), codepoints, format, options.key(format));
+  }
+
+  // The array held by the cache: it must not be modified.
+  private byte[] shared(final CodepointSet codepoints, final Format format,
+                        final Options options) throws IOException {
+    final SubsetCache.Key key = key(codepoints, format, options);
+    final byte[] cached = cache.get(key);
+    if (cached != null) return cached;
+    final byte[] bytes = encode(codepoints, format, options);
+    cache.put(key, bytes);
+    return bytes;
+  }
+
+  /**
+   * Converts the whole font to every format, without subsetting it.
+   */
+  public Map<Format, byte[]> all(final Executor executor) throws IOException {
+    return all((CodepointSet)null, executor);
+  }
+
+  public Map<Format, byte[]> all(final String str, final Executor executor) throws IOException {
+    return all(codepoints(str), executor);
+  }
+
+  public Map<Format, byte[]> all(final CodepointSet codepoints, final Executor executor) throws IOException {
+    return all(codepoints, Options.DEFAULT, executor);
+  }
+
+  /**
+   * Subsets the font once and encodes it to every format, the encoders running in parallel on
+   * the given executor (or on the calling thread if the executor is null).
+   */
+  public Map<Format, byte[]> all(final CodepointSet codepoints, final Options options,
+                                 final Executor executor) throws IOException {
+    final Map<Format, byte[]> result = new EnumMap<>(Format.class);
+    final Map<Format, SubsetCache.Key> keys = new EnumMap<>(Format.class);
+    for (final Format format: Format.values()) {
+      if (cache == null) continue;
+      final SubsetCache.Key key = key(codepoints, format, options);
+      final byte[] cached = cache.get(key);
+      if (cached == null) keys.put(format, key); else result.put(format, cached.clone());
+    }
+    if (result.size() == Format.values().length) return result;
+    final Font stripped = strip(codepoints, options);
+    final Map<Format, CompletableFuture<byte[]>> futures = new EnumMap<>(Format.class);
+    for (final Format format: Format.values()) {
+      if (result.containsKey(format)) continue;
+      futures.put(format, async(() -> encode(stripped, format, options), executor));
+    }
+    for (final Map.Entry<Format, CompletableFuture<byte[]>> entry: futures.entrySet()) {
+      final byte[] bytes = join(entry.getValue());
+      if (cache != null) cache.put(keys.get(entry.getKey()), bytes.clone());
+      result.put(entry.getKey(), bytes);
+    }
+    return result;
+  }
+
+  /**
+   * Splits the font coverage into about count shards along unicode blocks (see
+   * {@link Shard#byUnicodeBlock(CodepointSet, int)}) and encodes them in parallel.
+   * {@link Shard#css(String, List, IntFunction)} generates the matching @font-face rules.
+   */
+  public List<Shard> shards(final int count, final Format format, final Executor executor) throws IOException {
+    return shards(Shard.byUnicodeBlock(coverage(), count), format, executor);
+  }
+
+  public List<Shard> shards(final List<CodepointSet> plan, final Format format,
+                            final Executor executor) throws IOException {
+    return shards(plan, format, Options.DEFAULT, executor);
+  }
+
+  public List<Shard> shards(final List<CodepointSet> plan, final Format format, final Options options,
+                            final Executor executor) throws IOException {
+    final List<CompletableFuture<byte[]>> futures = new ArrayList<>(plan.size());
+    for (final CodepointSet codepoints: plan) {
+      futures.add(async(() -> cached(codepoints, format, options), executor));
+    }
+    final List<Shard> shards = new ArrayList<>(plan.size());
+    for (int i=0; i<plan.size(); ++i) {
+      shards.add(new Shard(plan.get(i), format, join(futures.get(i))));
+    }
+    return shards;
+  }
+
+  private interface IOSupplier<T> {
+    T get() throws IOException;
+  }
+
+  private static <T> CompletableFuture<T> async(final IOSupplier<T> supplier, final Executor executor) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return supplier.get();
+      }
+      catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, executor == null ? Runnable::run : executor);
+  }
+
+  private static <T> T join(final CompletableFuture<T> future) throws IOException {
+    try {
+      return future.join();
+    }
+    catch (final CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException)e.getCause()).getCause();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns a {@link FontPatch} that turns the ttf subset for the previous codepoints into the ttf
+   * subset for the previous and the added codepoints. Both subsets keep the original glyph ids,
+   * so that the glyphs of the previous subset are copied as is: the patch only applies to
+   * {@code ttf(previous, Options.DEFAULT.preserveGlyphIds(true))}, not to {@code ttf(previous)},
+   * and never to woff or woff2 files, whose compressed tables have to be decoded first.
+   * A null previous set stands for the empty set, for the first patch of a font.
+   */
+  public byte[] patch(final CodepointSet previous, final CodepointSet added) throws IOException {
+    if (added == null) throw new IllegalArgumentException("The added codepoints can't be null.");
+    final CodepointSet base = previous == null ? CodepointSet.EMPTY : previous;
+    final Options options = Options.DEFAULT.preserveGlyphIds(true);
+    return FontPatch.create(ttf(base, options), ttf(base.union(added), options));
+  }
+
+  // The ttf subset for the longest prefix of the font coverage that fits in maxSize bytes, for
+  // FontDictionary. The length of the prefix is found by bisection.
+  byte[] dictionarySample(final int maxSize) throws IOException {
+    final byte[] whole = encode((CodepointSet)null, Format.TTF, Options.DEFAULT);
+    if (whole.length <= maxSize) return whole;
+    final int[] codepoints = coverage().toArray();
+    byte[] best = new byte[0];
+    int low = 0;
+    int high = codepoints.length;
+    while (low < high) {
+      final int count = (low + high + 1) >>> 1;
+      final byte[] sample = encode(CodepointSet.of(Arrays.copyOf(codepoints, count)), Format.TTF, Options.DEFAULT);
+      if (sample.length <= maxSize) {
+        best = sample;
+        low = count;
+      }
+      else {
+        high = count - 1;
       }
     }
-    for (CMap cmap : cmapTable) {
-      if (cmap.format() == CMap.CMapFormat.Format4.value()) {
-        return cmap;
+    return best;
+  }
+
+  // Writes the output as it is produced, without buffering the whole file first when possible.
+  private void write(final CodepointSet codepoints, final Format format, final Options options,
+                     final OutputStream out) throws IOException {
+    if (cache != null) {
+      out.write(shared(codepoints, format, options));
+    }
+    else {
+      final Font stripped = strip(codepoints, options);
+      switch (format) {
+        case TTF:
+          factory.serializeFont(stripped, out);
+          break;
+        case WOFF:
+          new WoffWriter(options).write(stripped, out);
+          break;
+        case WOFF2:
+          new Woff2Writer(options).write(stripped, out);
+          break;
+        default:
+          throw new IllegalArgumentException();
       }
     }
-    return null;
+    out.flush();
   }
 
+  private byte[] encode(final CodepointSet codepoints, final Format format,
+                        final Options options) throws IOException {
+    return encode(strip(codepoints, options), format, options);
+  }
+
+  private byte[] encode(final Font stripped, final Format format, final Options options) throws IOException {
+    switch (format) {
+      case TTF: {
+        //-h -e -b64 "abcdef" font.ttf
+        // woff = false, strip = true, encode = true
+        final ExactByteArrayOutputStream out = new ExactByteArrayOutputStream(sfntSize(stripped));
+        factory.serializeFont(stripped, out);
+        out.close();
+        return out.bytes();
+      }
+      case WOFF: {
+        //-w -h -e -b64 "abcdef" font.ttf
+        // woff = true, strip = true, encode = true
+        return new WoffWriter(options).write(stripped);
+      }
+      case WOFF2:
+        return new Woff2Writer(options).write(stripped);
+      default:
+        throw new IllegalArgumentException();
+    }
+  }
+
+  // Header, table directory, and the tables padded to 4 bytes.
+  private static int sfntSize(final Font font) {
+    int size = 12 + 16 * font.numTables();
+    for (final Table table: font.tableMap().values()) {
+      size += (table.dataLength() + 3) & -4;
+    }
+    return size;
+  }
+
+  // Gives back its internal buffer instead of a copy when it was sized exactly.
+  private static final class ExactByteArrayOutputStream extends ByteArrayOutputStream {
+    ExactByteArrayOutputStream(final int size) {
+      super(size);
+    }
+
+    byte[] bytes() {
+      return count == buf.length ? buf : toByteArray();
+    }
+  }
+
+  /**
+   * Returns the characters that have a glyph with an outline, one per glyph, in glyph order.
+   */
   public String glyphs() throws IOException {
-    final CMapTable cmapTable = font.getTable(Tag.cmap);
-    final CMap cmap = getBestCMap(cmapTable);
-    if (cmap == null) return "";
-
-    final Map<Integer, Character> map = new HashMap<>(1024);
-    final Iterator<Integer> iterator = cmap.iterator();
-    while (iterator.hasNext()) {
-      final int c = iterator.next();
-      final int glyphId = cmap.glyphId(c);
-      if (glyphId > 0) map.put(glyphId, (char)c);
-    }
-
-    final GlyphTable glyphTable = font.getTable(Tag.glyf);
-    final LocaTable locaTable = font.getTable(Tag.loca);
-    if (glyphTable == null || locaTable == null) return "";
-
-    final StringBuilder builder = new StringBuilder(1024);
-
-    for (int i=0; i<locaTable.numGlyphs(); ++i) {
-      int offset = locaTable.glyphOffset(i);
-      int length = locaTable.glyphLength(i);
-      Glyph glyph = glyphTable.glyph(offset, length);
-      if (glyph != null) {
-        if (glyph.readFontData().size() > 0) {
-          final Character c = map.get(i);
-          if (c != null) builder.append(c);
-        }
+    return fontIndex().glyphs();
+  }
+
+  /**
+   * Returns whether the font maps the codepoint to a glyph with an outline (or to any glyph for
+   * fonts without a glyf table).
+   */
+  public boolean supports(final int codepoint) throws IOException {
+    return fontIndex().supports(codepoint);
+  }
+
+  public CodepointSet coverage() throws IOException {
+    return fontIndex().coverage();
+  }
+
+  public CodepointSet missing(final CodepointSet codepoints) throws IOException {
+    return fontIndex().missing(codepoints);
+  }
+
+  int glyphSize(final int codepoint) throws IOException {
+    return fontIndex().glyphSize(codepoint);
+  }
+
+  private FontIndex fontIndex() throws IOException {
+    FontIndex built = fontIndex;
+    if (built == null) {
+      synchronized (lock) {
+        built = fontIndex;
+        if (built == null) fontIndex = built = FontIndex.build(font());
       }
     }
-    return builder.toString();
+    return built;
   }
 
 //  public byte[] woff2(final String str) throws IOException {
@@ -144,41 +496,59 @@ public class Extractor {
 //    return out.toByteArray();
 //  }
 
+  /**
+   * Returns the whole font, without hints, as ttf.
+   */
+  public byte[] ttf() throws IOException {
+    return ttf((CodepointSet)null);
+  }
+
   public byte[] ttf(final String str) throws IOException {
-    //-h -e -b64 "abcdef" font.ttf
-    // woff = false, strip = true, encode = true
-    final Font stripped = strip(str);
-    final ByteArrayOutputStream out = new ByteArrayOutputStream();
-    factory.serializeFont(stripped, out);
-    out.close();
-    return out.toByteArray();
+    return ttf(codepoints(str));
+  }
+
+  public byte[] ttf(final CodepointSet codepoints) throws IOException {
+    return ttf(codepoints, Options.DEFAULT);
+  }
+
+  public byte[] ttf(final CodepointSet codepoints, final Options options) throws IOException {
+    return cached(codepoints, Format.TTF, options);
+  }
+
+  public void ttf(final CodepointSet codepoints, final OutputStream out) throws IOException {
+    ttf(codepoints, Options.DEFAULT, out);
+  }
+
+  public void ttf(final CodepointSet codepoints, final Options options,
+                  final OutputStream out) throws IOException {
+    write(codepoints, Format.TTF, options, out);
+  }
+
+  public void ttf(final CodepointSet codepoints, final WritableByteChannel channel) throws IOException {
+    ttf(codepoints, Options.DEFAULT, channel);
+  }
+
+  public void ttf(final CodepointSet codepoints, final Options options,
+                  final WritableByteChannel channel) throws IOException {
+    ttf(codepoints, options, Channels.newOutputStream(channel));
   }
 
   public static void main(final String[] args) throws IOException {
-    final FileInputStream input = new FileInputStream(new File("m:/exclam.ttf"));
-    try {
-      final byte[] buffer = new byte[4096];
-      final ByteArrayOutputStream output = new ByteArrayOutputStream();
-      int len;
-      while ((len = input.read(buffer)) != -1) {
-        output.write(buffer, 0, len);
-      }
-      output.close();
-      final Extractor extractor = new Extractor(output.toByteArray());
-      final byte[] bytes1 = extractor.woff2("!"); //abcdefghijklmnopqrstuvwxyz");
-      //if (bytes1.length < 1024) throw new RuntimeException();
-      System.out.println(bytes1.length);
-      final FileOutputStream fos1 = new FileOutputStream("m:/exclam.woff2");
-      fos1.write(bytes1);
-      fos1.close();
+    final Extractor extractor = new Extractor(Paths.get("m:/exclam.ttf"));
+    final byte[] bytes1 = extractor.woff2("!"); //abcdefghijklmnopqrstuvwxyz");
+    //if (bytes1.length < 1024) throw new RuntimeException();
+    System.out.println(bytes1.length);
+    final FileOutputStream fos1 = new FileOutputStream("m:/exclam.woff2");
+    fos1.write(bytes1);
+    fos1.close();
 /*
-      final byte[] bytes2 = extractor.ttf("abcdefghijklmnopqrstuvwxyz");
-      //if (bytes2.length < 1024) throw new RuntimeException();
-      System.out.println(bytes2.length);
-      final FileOutputStream fos2 = new FileOutputStream("subset.ttf");
-      fos2.write(bytes2);
-      fos2.close();
-      if (!new Extractor(bytes2).glyphs().equals("abcdefghijklmnopqrstuvwxyz")) throw new AssertionError();
+    final byte[] bytes2 = extractor.ttf("abcdefghijklmnopqrstuvwxyz");
+    //if (bytes2.length < 1024) throw new RuntimeException();
+    System.out.println(bytes2.length);
+    final FileOutputStream fos2 = new FileOutputStream("subset.ttf");
+    fos2.write(bytes2);
+    fos2.close();
+    if (!new Extractor(bytes2).glyphs().equals("abcdefghijklmnopqrstuvwxyz")) throw new AssertionError();
 
 //      final byte[] bytes3 = extractor.woff2("abcdefghijklmnopqrstuvwxyz");
 //      if (bytes3.length < 1024) throw new RuntimeException();
@@ -200,13 +570,6 @@ public class Extractor {
 //      final FileOutputStream fos5 = new FileOutputStream("converted.woff2");
 //      fos5.write(bytes5);
 //      fos5.close();
-    }
-    finally {
-      try {
-        input.close();
-      }
-      catch (final IOException ignore) {}
-    }
   }
 
 }
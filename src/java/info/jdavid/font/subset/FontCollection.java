@@ -0,0 +1,204 @@
+package info.jdavid.font.subset;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.google.typography.font.sfntly.Font;
+import com.google.typography.font.sfntly.FontFactory;
+
+
+/**
+ * Font file that can hold several faces (.ttc/.otc collections), or a single font.
+ * Faces are only parsed when first used. Their tables are views on the same file data, so tables
+ * that are shared between faces of a collection are stored only once. Mapped files are copied to
+ * the heap when the first face is parsed, because sfntly can only parse byte arrays.
+ * Digests for the {@link SubsetCache} are computed from the mapping, so cache hits don't need the copy.
+ * Instances are thread-safe.
+ */
+public final class FontCollection {
+
+  private static final int TTCF = 0x74746366;
+  private static final int NAME = 0x6e616d65;
+
+  private final ByteBuffer data;
+  private final SubsetCache cache;
+  private final int[] offsets;
+  private final Extractor[] faces;
+  private final Font[] fonts;
+  private final Object lock = new Object();
+  private byte[] bytes = null;
+  private Font.Builder[] builders = null;
+  private byte[] digest = null;
+
+  public FontCollection(final byte[] bytes) {
+    this(bytes, null);
+  }
+
+  public FontCollection(final byte[] bytes, final SubsetCache cache) {
+    this(ByteBuffer.wrap(bytes), cache);
+  }
+
+  public FontCollection(final Path path) throws IOException {
+    this(path, null);
+  }
+
+  public FontCollection(final Path path, final SubsetCache cache) throws IOException {
+    this(map(path), cache);
+  }
+
+  public FontCollection(final FileChannel channel) throws IOException {
+    this(channel, null);
+  }
+
+  public FontCollection(final FileChannel channel, final SubsetCache cache) throws IOException {
+    this(map(channel), cache);
+  }
+
+  private FontCollection(final ByteBuffer data, final SubsetCache cache) {
+    this.data = data;
+    this.cache = cache;
+    if (data.remaining() >= 12 && data.getInt(0) == TTCF) {
+      final int count = data.getInt(8);
+      if (count <= 0 || 12 + 4L * count > data.remaining()) throw new IllegalArgumentException();
+      offsets = new int[count];
+      for (int i=0; i<count; ++i) {
+        offsets[i] = data.getInt(12 + 4 * i);
+      }
+    }
+    else {
+      offsets = new int[] { 0 };
+    }
+    faces = new Extractor[offsets.length];
+    fonts = new Font[offsets.length];
+  }
+
+  static ByteBuffer map(final Path path) throws IOException {
+    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return map(channel);
+    }
+  }
+
+  // The mapping stays valid after the channel is closed.
+  static ByteBuffer map(final FileChannel channel) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+  }
+
+  SubsetCache cache() {
+    return cache;
+  }
+
+  public boolean isCollection() {
+    return data.remaining() >= 4 && data.getInt(0) == TTCF;
+  }
+
+  public int size() {
+    return offsets.length;
+  }
+
+  public Extractor face(final int index) {
+    synchronized (lock) {
+      Extractor face = faces[index];
+      if (face == null) faces[index] = face = new Extractor(this, index);
+      return face;
+    }
+  }
+
+  /**
+   * Returns the face with the given full name or postscript name, or null if there isn't one.
+   */
+  public Extractor face(final String name) {
+    for (int i=0; i<offsets.length; ++i) {
+      if (name.equals(name(i, 4)) || name.equals(name(i, 6))) return face(i);
+    }
+    return null;
+  }
+
+  /**
+   * Returns the full name of the face, read directly from its name table without parsing the face.
+   */
+  public String name(final int index) {
+    final String name = name(index, 4);
+    return name == null ? name(index, 6) : name;
+  }
+
+  Font font(final int index) throws IOException {
+    synchronized (lock) {
+      Font font = fonts[index];
+      if (font == null) {
+        if (builders == null) {
+          // Only reads the table directories: the tables themselves are slices of the font data.
+          builders = FontFactory.getInstance().loadFontsForBuilding(bytes());
+        }
+        fonts[index] = font = builders[index].build();
+      }
+      return font;
+    }
+  }
+
+  // Digest of the whole file, extended with the face index.
+  byte[] digest(final int index) throws IOException {
+    synchronized (lock) {
+      if (digest == null) digest = SubsetCache.digest(data.duplicate());
+      final byte[] faceDigest = Arrays.copyOf(digest, digest.length + 4);
+      ByteBuffer.wrap(faceDigest, digest.length, 4).putInt(index);
+      return faceDigest;
+    }
+  }
+
+  // sfntly only parses byte arrays (its ByteArray implementations are package private), so mapped
+  // files are copied once, here, and the copy is kept as long as the collection: the parsed tables
+  // are slices of it.
+  private byte[] bytes() {
+    if (bytes == null) {
+      if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == data.remaining()) {
+        bytes = data.array();
+      }
+      else {
+        bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+      }
+    }
+    return bytes;
+  }
+
+  private String name(final int index, final int nameId) {
+    final int offset = offsets[index];
+    final int numTables = data.getShort(offset + 4) & 0xffff;
+    for (int i=0; i<numTables; ++i) {
+      final int entry = offset + 12 + 16 * i;
+      if (data.getInt(entry) == NAME) return readName(data.getInt(entry + 8), nameId);
+    }
+    return null;
+  }
+
+  // Prefers the windows unicode english name, then any windows unicode name, then the mac roman name.
+  private String readName(final int table, final int nameId) {
+    final int count = data.getShort(table + 2) & 0xffff;
+    final int strings = table + (data.getShort(table + 4) & 0xffff);
+    int best = -1;
+    int bestScore = 0;
+    for (int i=0; i<count; ++i) {
+      final int record = table + 6 + 12 * i;
+      if ((data.getShort(record + 6) & 0xffff) != nameId) continue;
+      final int platformId = data.getShort(record) & 0xffff;
+      final int languageId = data.getShort(record + 4) & 0xffff;
+      final int score = platformId == 3 ? (languageId == 0x409 ? 3 : 2) : platformId == 1 ? 1 : 0;
+      if (score > bestScore) {
+        best = record;
+        bestScore = score;
+      }
+    }
+    if (best == -1) return null;
+    final byte[] bytes = new byte[data.getShort(best + 8) & 0xffff];
+    final ByteBuffer slice = data.duplicate();
+    slice.position(strings + (data.getShort(best + 10) & 0xffff));
+    slice.get(bytes);
+    return new String(bytes, bestScore > 1 ? StandardCharsets.UTF_16BE : StandardCharsets.ISO_8859_1);
+  }
+
+}
@@ -0,0 +1,180 @@
+package info.jdavid.font.subset;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.brotli.dec.BrotliInputStream;
+
+
+/**
+ * Custom brotli dictionary trained from a font, or from the fonts of a family, so that the subsets
+ * of these fonts can be compressed against content that the client already has (the dictionary
+ * would typically be fetched and cached once, and the subsets served with a dictionary aware
+ * content encoding). Woff2 files can't reference an external dictionary, so this applies to ttf
+ * subsets.
+ * <p>
+ * Format: "FDIC", version byte, dictionary length and crc32 (uint32), then the dictionary bytes.
+ */
+public final class FontDictionary {
+
+  private static final int MAGIC = 0x46444943;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 13;
+  // Size of the empty metadata meta-block that follows the window bits in the compressed streams.
+  private static final int METADATA_HEADER_BITS = 6;
+
+  private final byte[] bytes;
+
+  private FontDictionary(final byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * Builds a dictionary of at most maxSize bytes from the ttf subset of the font for as many of its
+   * codepoints as fit, lowest codepoints first.
+   */
+  public static FontDictionary train(final Extractor font, final int maxSize) throws IOException {
+    return train(Collections.singletonList(font), maxSize);
+  }
+
+  /**
+   * Builds a dictionary of at most maxSize bytes for a family. Each font gets an equal share, and
+   * the last fonts end up closest to the data, where references are the cheapest.
+   */
+  public static FontDictionary train(final List<Extractor> fonts, final int maxSize) throws IOException {
+    if (fonts.isEmpty() || maxSize <= 0) throw new IllegalArgumentException();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(maxSize);
+    for (final Extractor font: fonts) {
+      final byte[] sample = font.dictionarySample(maxSize / fonts.size());
+      out.write(sample, 0, sample.length);
+    }
+    return new FontDictionary(out.toByteArray());
+  }
+
+  public static FontDictionary read(final byte[] bytes) throws IOException {
+    final ByteBuffer header = ByteBuffer.wrap(bytes);
+    if (bytes.length < HEADER_SIZE || header.getInt() != MAGIC || header.get() != VERSION) {
+      throw new IOException("Invalid font dictionary.");
+    }
+    final int length = header.getInt();
+    final int crc = header.getInt();
+    if (length != bytes.length - HEADER_SIZE) throw new IOException("Invalid font dictionary.");
+    final byte[] dictionary = Arrays.copyOfRange(bytes, HEADER_SIZE, bytes.length);
+    if (crc(dictionary) != (crc & 0xffffffffL)) throw new IOException("Invalid font dictionary.");
+    return new FontDictionary(dictionary);
+  }
+
+  public byte[] toByteArray() {
+    final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+    buffer.putInt(MAGIC).put((byte)VERSION).putInt(bytes.length).putInt((int)crc(bytes));
+    buffer.put(bytes);
+    return buffer.array();
+  }
+
+  /**
+   * The raw dictionary content.
+   */
+  public byte[] content() {
+    return bytes.clone();
+  }
+
+  /**
+   * The sha-256 of the raw dictionary content.
+   */
+  public byte[] id() {
+    return SubsetCache.digest(bytes);
+  }
+
+  public int size() {
+    return bytes.length;
+  }
+
+  /**
+   * Compresses the data (usually a ttf subset) to a brotli stream that references the dictionary,
+   * with the quality and window size of the options. Only the last (1 &lt;&lt; window) - 16 bytes
+   * of the dictionary can be referenced.
+   */
+  public byte[] compress(final byte[] data, final Options options) {
+    return BrotliEncoder.compress(data, 0, data.length, bytes,
+                                  options.brotliQuality(), options.brotliWindow());
+  }
+
+  public byte[] compress(final byte[] data) {
+    return compress(data, Options.DEFAULT);
+  }
+
+  /**
+   * Decompresses a stream produced by {@link #compress(byte[], Options)}, with the pure java
+   * brotli decoder.
+   */
+  public byte[] decompress(final byte[] compressed) throws IOException {
+    if (compressed.length == 0) throw new IOException("Invalid brotli stream.");
+    final int windowBits = windowBits(compressed);
+    final int window = window(compressed);
+    final int length = Math.min(bytes.length, (1 << window) - 16);
+    final byte[] prefixed = prefixed(compressed, windowBits, bytes, bytes.length - length, length);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+    try (final InputStream in = new BrotliInputStream(new ByteArrayInputStream(prefixed))) {
+      final byte[] buffer = new byte[8192];
+      long skip = length;
+      while (skip > 0) {
+        final long n = in.skip(skip);
+        if (n <= 0) throw new IOException("Invalid brotli stream.");
+        skip -= n;
+      }
+      int n;
+      while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  // The size of the window bits at the start of the stream.
+  private static int windowBits(final byte[] stream) {
+    return (stream[0] & 1) == 0 ? 1 : (stream[0] & 0x0e) != 0 ? 4 : 7;
+  }
+
+  private static int window(final byte[] stream) {
+    if ((stream[0] & 1) == 0) return 16;
+    final int n = (stream[0] >> 1) & 7;
+    if (n != 0) return 17 + n;
+    final int m = (stream[0] >> 4) & 7;
+    return m == 0 ? 17 : 8 + m;
+  }
+
+  // A stream that any brotli decoder can decode, with the same output prefixed with the dictionary:
+  // the dictionary is inserted as an uncompressed meta-block after the window bits. Both the
+  // uncompressed meta-block and the data of the stream start on a byte boundary.
+  private static byte[] prefixed(final byte[] stream, final int windowBits,
+                                 final byte[] dictionary, final int offset, final int length) {
+    final int dataOffset = (windowBits + METADATA_HEADER_BITS + 7) >> 3;
+    if (length == 0 || stream.length < dataOffset) return stream;
+    final BrotliEncoder.BitWriter header = new BrotliEncoder.BitWriter(16);
+    header.write(windowBits, stream[0] & ((1 << windowBits) - 1));
+    final int mlen = length - 1;
+    final int nibbles = mlen < (1 << 16) ? 4 : mlen < (1 << 20) ? 5 : 6;
+    header.write(1, 0);
+    header.write(2, nibbles - 4);
+    header.write(nibbles * 4, mlen);
+    header.write(1, 1);
+    final byte[] head = header.toByteArray();
+    final byte[] prefixed = new byte[head.length + length + stream.length - dataOffset];
+    System.arraycopy(head, 0, prefixed, 0, head.length);
+    System.arraycopy(dictionary, offset, prefixed, head.length, length);
+    System.arraycopy(stream, dataOffset, prefixed, head.length + length, stream.length - dataOffset);
+    return prefixed;
+  }
+
+  private static long crc(final byte[] bytes) {
+    final CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return crc.getValue();
+  }
+
+}
@@ -0,0 +1,240 @@
+package info.jdavid.font.subset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.typography.font.sfntly.Font;
+import com.google.typography.font.sfntly.Tag;
+import com.google.typography.font.sfntly.data.ReadableFontData;
+import com.google.typography.font.sfntly.table.core.CMap;
+import com.google.typography.font.sfntly.table.core.CMapTable;
+import com.google.typography.font.sfntly.table.core.MaximumProfileTable;
+import com.google.typography.font.sfntly.table.truetype.GlyphTable;
+import com.google.typography.font.sfntly.table.truetype.LocaTable;
+
+
+// Codepoint coverage and glyph dependencies of a font, built once from the cmap, loca and glyf
+// tables and then only read with primitive lookups.
+final class FontIndex {
+
+  private static final int PAGE_BITS = 8;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+  private static final int ARG_1_AND_2_ARE_WORDS = 1;
+  private static final int WE_HAVE_A_SCALE = 1 << 3;
+  private static final int MORE_COMPONENTS = 1 << 5;
+  private static final int WE_HAVE_AN_X_AND_Y_SCALE = 1 << 6;
+  private static final int WE_HAVE_A_TWO_BY_TWO = 1 << 7;
+
+  private final int numGlyphs;
+  // Supported codepoints (mapped to a glyph with an outline), as a bitset.
+  private final long[] supported;
+  private final CodepointSet coverage;
+  // Codepoint for each glyph that has an outline, -1 for the others.
+  private final int[] glyphCodepoints;
+  // Glyph id for every mapped codepoint, in pages of 256 codepoints (null for empty pages).
+  private final int[][] cmapPages;
+  // Components of composite glyph g: components[componentStart[g]] to components[componentStart[g+1]-1].
+  private final int[] componentStart;
+  private final int[] components;
+  // Size of the glyf data of each glyph (empty for fonts without a glyf table).
+  private final int[] glyphLengths;
+
+  private FontIndex(final int numGlyphs, final long[] supported, final CodepointSet coverage,
+                    final int[] glyphCodepoints, final int[][] cmapPages,
+                    final int[] componentStart, final int[] components, final int[] glyphLengths) {
+    this.numGlyphs = numGlyphs;
+    this.supported = supported;
+    this.coverage = coverage;
+    this.glyphCodepoints = glyphCodepoints;
+    this.cmapPages = cmapPages;
+    this.componentStart = componentStart;
+    this.components = components;
+    this.glyphLengths = glyphLengths;
+  }
+
+  static FontIndex build(final Font font) {
+    final CMapTable cmapTable = font.getTable(Tag.cmap);
+    final CMap cmap = cmapTable == null ? null : getBestCMap(cmapTable);
+    final LocaTable locaTable = font.getTable(Tag.loca);
+    final boolean outlines = locaTable != null && font.getTable(Tag.glyf) != null;
+    final int numGlyphs;
+    if (outlines) {
+      numGlyphs = locaTable.numGlyphs();
+    }
+    else {
+      final MaximumProfileTable maxp = font.getTable(Tag.maxp);
+      numGlyphs = maxp == null ? 0 : maxp.numGlyphs();
+    }
+    final int[] glyphCodepoints = new int[outlines ? numGlyphs : 0];
+    Arrays.fill(glyphCodepoints, -1);
+    final int[] componentStart = new int[numGlyphs + 1];
+    final int[] glyphLengths = new int[outlines ? numGlyphs : 0];
+    final int[] components = outlines ?
+                             components(font.<GlyphTable>getTable(Tag.glyf).readFontData(), locaTable,
+                                        numGlyphs, componentStart, glyphLengths) :
+                             new int[0];
+    if (cmap == null) {
+      return new FontIndex(numGlyphs, new long[0], CodepointSet.EMPTY, glyphCodepoints, new int[0][],
+                           componentStart, components, glyphLengths);
+    }
+
+    // The cmap iterator of a format 4 or 12 subtable goes through the codepoints in increasing
+    // order, but other formats don't have to, so the maximum is tracked separately.
+    int[] codepoints = new int[1024];
+    int count = 0;
+    int max = -1;
+    int[][] cmapPages = new int[16][];
+    final Iterator<Integer> iterator = cmap.iterator();
+    while (iterator.hasNext()) {
+      final int c = iterator.next();
+      final int glyphId = cmap.glyphId(c);
+      if (glyphId <= 0 || glyphId >= numGlyphs) continue;
+      final int page = c >> PAGE_BITS;
+      if (page >= cmapPages.length) cmapPages = Arrays.copyOf(cmapPages, Math.max(page + 1, cmapPages.length * 2));
+      if (cmapPages[page] == null) cmapPages[page] = new int[PAGE_SIZE];
+      cmapPages[page][c & (PAGE_SIZE - 1)] = glyphId;
+      if (outlines) {
+        if (locaTable.glyphLength(glyphId) == 0) continue;
+        glyphCodepoints[glyphId] = c;
+      }
+      if (count == codepoints.length) codepoints = Arrays.copyOf(codepoints, count * 2);
+      codepoints[count++] = c;
+      if (c > max) max = c;
+    }
+    final long[] supported = new long[(max >> 6) + 1];
+    for (int i=0; i<count; ++i) {
+      final int c = codepoints[i];
+      supported[c >> 6] |= 1L << c;
+    }
+    int pageCount = cmapPages.length;
+    while (pageCount > 0 && cmapPages[pageCount - 1] == null) --pageCount;
+    return new FontIndex(numGlyphs, supported, CodepointSet.of(Arrays.copyOf(codepoints, count)),
+                         glyphCodepoints, Arrays.copyOf(cmapPages, pageCount), componentStart, components,
+                         glyphLengths);
+  }
+
+  // Reads the component glyph ids of every composite glyph directly from the glyf data,
+  // and fills componentStart with the offset of the components of each glyph, and glyphLengths.
+  private static int[] components(final ReadableFontData glyf, final LocaTable locaTable,
+                                  final int numGlyphs, final int[] componentStart, final int[] glyphLengths) {
+    int[] components = new int[64];
+    int count = 0;
+    for (int g=0; g<numGlyphs; ++g) {
+      componentStart[g] = count;
+      if ((glyphLengths[g] = locaTable.glyphLength(g)) == 0) continue;
+      int offset = locaTable.glyphOffset(g);
+      if (glyf.readShort(offset) >= 0) continue;
+      offset += 10;
+      int flags;
+      do {
+        flags = glyf.readUShort(offset);
+        if (count == components.length) components = Arrays.copyOf(components, count * 2);
+        components[count++] = glyf.readUShort(offset + 2);
+        offset += (flags & ARG_1_AND_2_ARE_WORDS) != 0 ? 8 : 6;
+        if ((flags & WE_HAVE_A_SCALE) != 0) offset += 2;
+        else if ((flags & WE_HAVE_AN_X_AND_Y_SCALE) != 0) offset += 4;
+        else if ((flags & WE_HAVE_A_TWO_BY_TWO) != 0) offset += 8;
+      }
+      while ((flags & MORE_COMPONENTS) != 0);
+    }
+    componentStart[numGlyphs] = count;
+    return Arrays.copyOf(components, count);
+  }
+
+  static CMap getBestCMap(final CMapTable cmapTable) {
+    for (CMap cmap : cmapTable) {
+      if (cmap.format() == CMap.CMapFormat.Format12.value()) {
+        return cmap;
+      }
+    }
+    for (CMap cmap : cmapTable) {
+      if (cmap.format() == CMap.CMapFormat.Format4.value()) {
+        return cmap;
+      }
+    }
+    return null;
+  }
+
+  boolean supports(final int codepoint) {
+    final int i = codepoint >> 6;
+    return codepoint >= 0 && i < supported.length && (supported[i] & (1L << codepoint)) != 0;
+  }
+
+  int glyphId(final int codepoint) {
+    final int page = codepoint >> PAGE_BITS;
+    if (codepoint < 0 || page >= cmapPages.length || cmapPages[page] == null) return 0;
+    return cmapPages[page][codepoint & (PAGE_SIZE - 1)];
+  }
+
+  // Sorted ids of the glyphs mapped by the codepoints and of all their components, plus glyph 0.
+  // The work is proportional to the number of codepoints and glyphs involved.
+  List<Integer> closure(final CodepointSet codepoints) {
+    final long[] selected = new long[(numGlyphs >> 6) + 1];
+    int[] stack = new int[64];
+    int size = 0;
+    int count = 1;
+    selected[0] = 1L;
+    for (int i=0; i<codepoints.rangeCount(); ++i) {
+      for (int c=codepoints.rangeStart(i); c<=codepoints.rangeEnd(i); ++c) {
+        final int glyphId = glyphId(c);
+        if (glyphId == 0 || (selected[glyphId >> 6] & (1L << glyphId)) != 0) continue;
+        selected[glyphId >> 6] |= 1L << glyphId;
+        ++count;
+        if (size == stack.length) stack = Arrays.copyOf(stack, size * 2);
+        stack[size++] = glyphId;
+      }
+    }
+    while (size > 0) {
+      final int glyphId = stack[--size];
+      for (int i=componentStart[glyphId]; i<componentStart[glyphId + 1]; ++i) {
+        final int component = components[i];
+        if (component >= numGlyphs || (selected[component >> 6] & (1L << component)) != 0) continue;
+        selected[component >> 6] |= 1L << component;
+        ++count;
+        if (size == stack.length) stack = Arrays.copyOf(stack, size * 2);
+        stack[size++] = component;
+      }
+    }
+    final List<Integer> glyphIds = new ArrayList<>(count);
+    for (int i=0; i<selected.length; ++i) {
+      long bits = selected[i];
+      while (bits != 0) {
+        glyphIds.add((i << 6) + Long.numberOfTrailingZeros(bits));
+        bits &= bits - 1;
+      }
+    }
+    return glyphIds;
+  }
+
+  // Size of the outline data of the glyph for the codepoint and of its direct components.
+  int glyphSize(final int codepoint) {
+    final int glyphId = glyphId(codepoint);
+    if (glyphId == 0 || glyphLengths.length == 0) return 0;
+    int size = glyphLengths[glyphId];
+    for (int i=componentStart[glyphId]; i<componentStart[glyphId + 1]; ++i) {
+      if (components[i] < numGlyphs) size += glyphLengths[components[i]];
+    }
+    return size;
+  }
+
+  CodepointSet coverage() {
+    return coverage;
+  }
+
+  CodepointSet missing(final CodepointSet codepoints) {
+    return codepoints.minus(coverage);
+  }
+
+  // One codepoint per glyph with an outline, in glyph order.
+  String glyphs() {
+    final StringBuilder builder = new StringBuilder(1024);
+    for (final int c: glyphCodepoints) {
+      if (c != -1) builder.appendCodePoint(c);
+    }
+    return builder.toString();
+  }
+
+}
@@ -0,0 +1,206 @@
+package info.jdavid.font.subset;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Binary patch that turns a font subset into a bigger one, for clients that already have the
+ * first subset and need more characters, in the spirit of Incremental Font Transfer.
+ * <p>
+ * Format: "IFTP", version byte, base length and crc32, target length and crc32 (all uint32), then
+ * the deflated instructions. Each instruction starts with a varint holding the length shifted left
+ * by one, with the low bit set for copies: literal bytes follow an add, and a varint with the offset
+ * in the base follows a copy.
+ */
+public final class FontPatch {
+
+  private static final int MAGIC = 0x49465450;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 21;
+  private static final int MIN_MATCH = 8;
+  private static final int HASH_BITS = 16;
+
+  /**
+   * Default limit for the size of the patched font, checked before anything is allocated.
+   */
+  public static final int MAX_TARGET_LENGTH = 64 * 1024 * 1024;
+
+  private FontPatch() {}
+
+  public static byte[] create(final byte[] base, final byte[] target) {
+    final ByteArrayOutputStream instructions = new ByteArrayOutputStream(target.length / 4);
+    final int[] table = new int[1 << HASH_BITS];
+    Arrays.fill(table, -1);
+    for (int i=0; i+MIN_MATCH<=base.length; ++i) {
+      table[hash(base, i)] = i;
+    }
+    int literalStart = 0;
+    int i = 0;
+    while (i + MIN_MATCH <= target.length) {
+      final int candidate = table[hash(target, i)];
+      if (candidate < 0 || !matches(base, candidate, target, i)) {
+        ++i;
+        continue;
+      }
+      int start = i;
+      int baseStart = candidate;
+      while (start > literalStart && baseStart > 0 && target[start - 1] == base[baseStart - 1]) {
+        --start;
+        --baseStart;
+      }
+      int end = i + MIN_MATCH;
+      int baseEnd = candidate + MIN_MATCH;
+      while (end < target.length && baseEnd < base.length && target[end] == base[baseEnd]) {
+        ++end;
+        ++baseEnd;
+      }
+      if (start > literalStart) {
+        writeVarInt(instructions, (start - literalStart) << 1);
+        instructions.write(target, literalStart, start - literalStart);
+      }
+      writeVarInt(instructions, ((end - start) << 1) | 1);
+      writeVarInt(instructions, baseStart);
+      literalStart = i = end;
+    }
+    if (target.length > literalStart) {
+      writeVarInt(instructions, (target.length - literalStart) << 1);
+      instructions.write(target, literalStart, target.length - literalStart);
+    }
+
+    final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    final byte[] input = instructions.toByteArray();
+    deflater.setInput(input);
+    deflater.finish();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + input.length / 2);
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC).put((byte)VERSION);
+    header.putInt(base.length).putInt((int)crc(base));
+    header.putInt(target.length).putInt((int)crc(target));
+    out.write(header.array(), 0, HEADER_SIZE);
+    final byte[] buffer = new byte[8192];
+    while (!deflater.finished()) {
+      out.write(buffer, 0, deflater.deflate(buffer));
+    }
+    deflater.end();
+    return out.toByteArray();
+  }
+
+  public static byte[] apply(final byte[] base, final byte[] patch) throws IOException {
+    return apply(base, patch, MAX_TARGET_LENGTH);
+  }
+
+  /**
+   * Applies the patch to the base. Patches usually come from the network, so the target length
+   * they declare is checked against maxTargetLength before the target is allocated, and the
+   * instructions are not inflated past the size a valid patch of that length can have.
+   */
+  public static byte[] apply(final byte[] base, final byte[] patch, final int maxTargetLength) throws IOException {
+    final ByteBuffer header = ByteBuffer.wrap(patch);
+    if (patch.length < HEADER_SIZE || header.getInt() != MAGIC || header.get() != VERSION) {
+      throw new IOException("Invalid font patch.");
+    }
+    if (header.getInt() != base.length || header.getInt() != (int)crc(base)) {
+      throw new IOException("The patch does not apply to this font.");
+    }
+    final int targetLength = header.getInt();
+    final int targetCrc = header.getInt();
+    if (targetLength < 0) throw new IOException("Invalid font patch.");
+    if (targetLength > maxTargetLength) throw new IOException("The patched font is too large.");
+    // Every instruction produces at least one byte, with at most 10 bytes of varints.
+    final long maxInstructionsLength = 11L * targetLength;
+
+    final Inflater inflater = new Inflater(true);
+    inflater.setInput(patch, HEADER_SIZE, patch.length - HEADER_SIZE);
+    final ByteArrayOutputStream instructions = new ByteArrayOutputStream(Math.min(targetLength, 8192));
+    final byte[] buffer = new byte[8192];
+    try {
+      while (!inflater.finished()) {
+        final int n = inflater.inflate(buffer);
+        if (n == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Invalid font patch.");
+        }
+        if (instructions.size() + n > maxInstructionsLength) throw new IOException("Invalid font patch.");
+        instructions.write(buffer, 0, n);
+      }
+    }
+    catch (final DataFormatException e) {
+      throw new IOException("Invalid font patch.", e);
+    }
+    finally {
+      inflater.end();
+    }
+
+    final byte[] ops = instructions.toByteArray();
+    final byte[] target = new byte[targetLength];
+    final int[] position = new int[1];
+    int n = 0;
+    try {
+      while (position[0] < ops.length) {
+        final int op = readVarInt(ops, position);
+        final int length = op >>> 1;
+        if (length == 0) throw new IOException("Invalid font patch.");
+        if ((op & 1) == 0) {
+          System.arraycopy(ops, position[0], target, n, length);
+          position[0] += length;
+        }
+        else {
+          System.arraycopy(base, readVarInt(ops, position), target, n, length);
+        }
+        n += length;
+      }
+    }
+    catch (final IndexOutOfBoundsException e) {
+      throw new IOException("Invalid font patch.", e);
+    }
+    if (n != targetLength || crc(target) != (targetCrc & 0xffffffffL)) {
+      throw new IOException("Invalid font patch.");
+    }
+    return target;
+  }
+
+  private static int hash(final byte[] bytes, final int offset) {
+    long h = 0;
+    for (int i=0; i<MIN_MATCH; ++i) h = (h << 8) | (bytes[offset + i] & 0xff);
+    return (int)((h * 0x9E3779B97F4A7C15L) >>> (64 - HASH_BITS));
+  }
+
+  private static boolean matches(final byte[] base, final int baseOffset, final byte[] target, final int offset) {
+    for (int i=0; i<MIN_MATCH; ++i) {
+      if (base[baseOffset + i] != target[offset + i]) return false;
+    }
+    return true;
+  }
+
+  private static long crc(final byte[] bytes) {
+    final CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return crc.getValue();
+  }
+
+  private static void writeVarInt(final ByteArrayOutputStream out, final int value) {
+    int v = value;
+    while ((v & ~0x7f) != 0) {
+      out.write((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out.write(v);
+  }
+
+  private static int readVarInt(final byte[] bytes, final int[] position) {
+    int value = 0;
+    for (int shift=0; shift<35; shift+=7) {
+      final int b = bytes[position[0]++];
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IndexOutOfBoundsException();
+  }
+
+}
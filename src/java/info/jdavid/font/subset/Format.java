@@ -0,0 +1,8 @@
+package info.jdavid.font.subset;
+
+
+public enum Format {
+
+  TTF, WOFF, WOFF2
+
+}
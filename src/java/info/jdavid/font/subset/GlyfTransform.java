@@ -0,0 +1,309 @@
+package info.jdavid.font.subset;
+
+import java.util.Arrays;
+
+
+// The woff2 transform of the glyf and loca tables: the glyph data is split into separate streams
+// (contour counts, point counts, flags, point coordinates as triplets, composite data, bounding
+// boxes and instructions) and the loca table is dropped, the decoder rebuilds it.
+// The streams keep their buffers from one transform to the next, so that a writer can reuse them.
+final class GlyfTransform {
+
+  private static final int HEADER_SIZE = 36;
+
+  private static final int ON_CURVE = 1;
+  private static final int X_SHORT = 1 << 1;
+  private static final int Y_SHORT = 1 << 2;
+  private static final int REPEAT = 1 << 3;
+  private static final int X_SAME_OR_POSITIVE = 1 << 4;
+  private static final int Y_SAME_OR_POSITIVE = 1 << 5;
+
+  private static final int ARG_1_AND_2_ARE_WORDS = 1;
+  private static final int WE_HAVE_A_SCALE = 1 << 3;
+  private static final int MORE_COMPONENTS = 1 << 5;
+  private static final int WE_HAVE_AN_X_AND_Y_SCALE = 1 << 6;
+  private static final int WE_HAVE_A_TWO_BY_TWO = 1 << 7;
+  private static final int WE_HAVE_INSTRUCTIONS = 1 << 8;
+
+  private final Stream nContours = new Stream();
+  private final Stream nPoints = new Stream();
+  private final Stream flags = new Stream();
+  private final Stream glyphs = new Stream();
+  private final Stream composites = new Stream();
+  private final Stream bboxes = new Stream();
+  private final Stream instructions = new Stream();
+  private final Stream[] streams = { nContours, nPoints, flags, glyphs, composites, bboxes, instructions };
+  private int[] points = new int[64];
+  private int numGlyphs = 0;
+  private int indexFormat = 0;
+
+  // glyf is the table data starting at glyfOffset, and offsets the numGlyphs + 1 glyph offsets
+  // from the loca table. Returns the length of the transformed table, see writeTo().
+  int transform(final byte[] glyf, final int glyfOffset, final int[] offsets, final int numGlyphs,
+                final int indexFormat) {
+    this.numGlyphs = numGlyphs;
+    this.indexFormat = indexFormat;
+    nContours.reset(numGlyphs * 2);
+    nPoints.reset(numGlyphs * 4);
+    flags.reset(numGlyphs * 16);
+    glyphs.reset(numGlyphs * 32);
+    composites.reset(64);
+    final int bitmapSize = ((numGlyphs + 31) >> 5) << 2;
+    bboxes.reset(bitmapSize + 64);
+    Arrays.fill(bboxes.bytes, 0, bitmapSize, (byte)0);
+    bboxes.size = bitmapSize;
+    instructions.reset(numGlyphs * 8);
+    for (int g=0; g<numGlyphs; ++g) {
+      final int start = glyfOffset + offsets[g];
+      if (offsets[g + 1] <= offsets[g] || getShort(glyf, start) == 0) {
+        nContours.writeShort(0);
+        continue;
+      }
+      final int contourCount = getShort(glyf, start);
+      if (contourCount > 0) {
+        nContours.writeShort(contourCount);
+        int offset = start + 10;
+        int last = -1;
+        for (int i=0; i<contourCount; ++i) {
+          final int end = getUShort(glyf, offset);
+          nPoints.write255UShort(end - last);
+          last = end;
+          offset += 2;
+        }
+        final int pointCount = last + 1;
+        final int instructionLength = getUShort(glyf, offset);
+        final int instructionOffset = offset + 2;
+        offset = instructionOffset + instructionLength;
+        if (points.length < pointCount) points = new int[Math.max(pointCount, points.length * 2)];
+        for (int i=0; i<pointCount;) {
+          final int flag = glyf[offset++] & 0xff;
+          int repeat = (flag & REPEAT) == 0 ? 1 : (glyf[offset++] & 0xff) + 1;
+          while (repeat-- > 0 && i < pointCount) points[i++] = flag;
+        }
+        int x = 0;
+        int y = 0;
+        int xMin = 0;
+        int yMin = 0;
+        int xMax = 0;
+        int yMax = 0;
+        int yOffset = offset;
+        for (int i=0; i<pointCount; ++i) yOffset += coordinateSize(points[i], X_SHORT, X_SAME_OR_POSITIVE);
+        for (int i=0; i<pointCount; ++i) {
+          final int flag = points[i];
+          final int dx;
+          if ((flag & X_SHORT) != 0) {
+            dx = (flag & X_SAME_OR_POSITIVE) != 0 ? glyf[offset] & 0xff : -(glyf[offset] & 0xff);
+            offset += 1;
+          }
+          else if ((flag & X_SAME_OR_POSITIVE) != 0) {
+            dx = 0;
+          }
+          else {
+            dx = getShort(glyf, offset);
+            offset += 2;
+          }
+          final int dy;
+          if ((flag & Y_SHORT) != 0) {
+            dy = (flag & Y_SAME_OR_POSITIVE) != 0 ? glyf[yOffset] & 0xff : -(glyf[yOffset] & 0xff);
+            yOffset += 1;
+          }
+          else if ((flag & Y_SAME_OR_POSITIVE) != 0) {
+            dy = 0;
+          }
+          else {
+            dy = getShort(glyf, yOffset);
+            yOffset += 2;
+          }
+          writeTriplet(flags, glyphs, (flag & ON_CURVE) != 0, dx, dy);
+          x += dx;
+          y += dy;
+          if (i == 0) {
+            xMin = xMax = x;
+            yMin = yMax = y;
+          }
+          else {
+            xMin = Math.min(xMin, x);
+            xMax = Math.max(xMax, x);
+            yMin = Math.min(yMin, y);
+            yMax = Math.max(yMax, y);
+          }
+        }
+        glyphs.write255UShort(instructionLength);
+        instructions.write(glyf, instructionOffset, instructionLength);
+        // The bounding box is only stored when it can't be computed from the points.
+        if (xMin != getShort(glyf, start + 2) || yMin != getShort(glyf, start + 4) ||
+            xMax != getShort(glyf, start + 6) || yMax != getShort(glyf, start + 8)) {
+          writeBbox(bboxes, glyf, start, g);
+        }
+      }
+      else {
+        nContours.writeShort(-1);
+        int offset = start + 10;
+        int flag;
+        boolean hasInstructions = false;
+        do {
+          flag = getUShort(glyf, offset);
+          hasInstructions |= (flag & WE_HAVE_INSTRUCTIONS) != 0;
+          offset += (flag & ARG_1_AND_2_ARE_WORDS) != 0 ? 8 : 6;
+          if ((flag & WE_HAVE_A_SCALE) != 0) offset += 2;
+          else if ((flag & WE_HAVE_AN_X_AND_Y_SCALE) != 0) offset += 4;
+          else if ((flag & WE_HAVE_A_TWO_BY_TWO) != 0) offset += 8;
+        }
+        while ((flag & MORE_COMPONENTS) != 0);
+        composites.write(glyf, start + 10, offset - start - 10);
+        if (hasInstructions) {
+          final int instructionLength = getUShort(glyf, offset);
+          glyphs.write255UShort(instructionLength);
+          instructions.write(glyf, offset + 2, instructionLength);
+        }
+        writeBbox(bboxes, glyf, start, g);
+      }
+    }
+
+    int size = HEADER_SIZE;
+    for (final Stream stream: streams) size += stream.size;
+    return size;
+  }
+
+  // Writes the result of the last transform.
+  void writeTo(final byte[] bytes, final int offset) {
+    Arrays.fill(bytes, offset, offset + HEADER_SIZE, (byte)0);
+    putShort(bytes, offset + 4, numGlyphs);
+    putShort(bytes, offset + 6, indexFormat);
+    int position = offset + HEADER_SIZE;
+    for (int i=0; i<streams.length; ++i) {
+      putInt(bytes, offset + 8 + i * 4, streams[i].size);
+      System.arraycopy(streams[i].bytes, 0, bytes, position, streams[i].size);
+      position += streams[i].size;
+    }
+  }
+
+  // Memory held by the streams, in bytes.
+  int capacity() {
+    int capacity = 4 * points.length;
+    for (final Stream stream: streams) capacity += stream.bytes.length;
+    return capacity;
+  }
+
+  private static int coordinateSize(final int flag, final int shortBit, final int sameBit) {
+    return (flag & shortBit) != 0 ? 1 : (flag & sameBit) != 0 ? 0 : 2;
+  }
+
+  private static void writeBbox(final Stream bboxes, final byte[] glyf, final int start, final int glyphId) {
+    bboxes.bytes[glyphId >> 3] |= 0x80 >> (glyphId & 7);
+    bboxes.write(glyf, start + 2, 8);
+  }
+
+  // The flag byte and 1 to 4 bytes of coordinates, with the same encoding as the woff2 reference encoder.
+  private static void writeTriplet(final Stream flags, final Stream glyphs,
+                                   final boolean onCurve, final int x, final int y) {
+    final int absX = Math.abs(x);
+    final int absY = Math.abs(y);
+    final int onCurveBit = onCurve ? 0 : 128;
+    final int xSignBit = x < 0 ? 0 : 1;
+    final int ySignBit = y < 0 ? 0 : 1;
+    final int xySignBits = xSignBit + 2 * ySignBit;
+    if (x == 0 && absY < 1280) {
+      flags.write(onCurveBit + ((absY & 0xf00) >> 7) + ySignBit);
+      glyphs.write(absY & 0xff);
+    }
+    else if (y == 0 && absX < 1280) {
+      flags.write(onCurveBit + 10 + ((absX & 0xf00) >> 7) + xSignBit);
+      glyphs.write(absX & 0xff);
+    }
+    else if (absX < 65 && absY < 65) {
+      flags.write(onCurveBit + 20 + ((absX - 1) & 0x30) + (((absY - 1) & 0x30) >> 2) + xySignBits);
+      glyphs.write((((absX - 1) & 0xf) << 4) | ((absY - 1) & 0xf));
+    }
+    else if (absX < 769 && absY < 769) {
+      flags.write(onCurveBit + 84 + 12 * (((absX - 1) & 0x300) >> 8) + (((absY - 1) & 0x300) >> 6) + xySignBits);
+      glyphs.write((absX - 1) & 0xff);
+      glyphs.write((absY - 1) & 0xff);
+    }
+    else if (absX < 4096 && absY < 4096) {
+      flags.write(onCurveBit + 120 + xySignBits);
+      glyphs.write(absX >> 4);
+      glyphs.write(((absX & 0xf) << 4) | (absY >> 8));
+      glyphs.write(absY & 0xff);
+    }
+    else {
+      flags.write(onCurveBit + 124 + xySignBits);
+      glyphs.write(absX >> 8);
+      glyphs.write(absX & 0xff);
+      glyphs.write(absY >> 8);
+      glyphs.write(absY & 0xff);
+    }
+  }
+
+  private static int getShort(final byte[] bytes, final int offset) {
+    return (short)(((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff));
+  }
+
+  private static int getUShort(final byte[] bytes, final int offset) {
+    return ((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff);
+  }
+
+  private static void putShort(final byte[] bytes, final int offset, final int value) {
+    bytes[offset] = (byte)(value >>> 8);
+    bytes[offset + 1] = (byte)value;
+  }
+
+  private static void putInt(final byte[] bytes, final int offset, final int value) {
+    bytes[offset] = (byte)(value >>> 24);
+    bytes[offset + 1] = (byte)(value >>> 16);
+    bytes[offset + 2] = (byte)(value >>> 8);
+    bytes[offset + 3] = (byte)value;
+  }
+
+  private static final class Stream {
+    byte[] bytes = new byte[16];
+    int size = 0;
+
+    // Empties the stream, and makes room for the expected size when the buffer is smaller.
+    void reset(final int capacity) {
+      if (bytes.length < capacity) bytes = new byte[capacity];
+      size = 0;
+    }
+
+    private void ensure(final int length) {
+      if (size + length > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(size + length, bytes.length * 2));
+    }
+
+    void write(final int b) {
+      ensure(1);
+      bytes[size++] = (byte)b;
+    }
+
+    void writeShort(final int value) {
+      ensure(2);
+      putShort(bytes, size, value);
+      size += 2;
+    }
+
+    void write(final byte[] src, final int offset, final int length) {
+      ensure(length);
+      System.arraycopy(src, offset, bytes, size, length);
+      size += length;
+    }
+
+    // The 255UInt16 variable length encoding.
+    void write255UShort(final int value) {
+      if (value < 253) {
+        write(value);
+      }
+      else if (value < 506) {
+        write(255);
+        write(value - 253);
+      }
+      else if (value < 762) {
+        write(254);
+        write(value - 506);
+      }
+      else {
+        write(253);
+        writeShort(value);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,68 @@
+package info.jdavid.font.subset;
+
+
+// The woff2 transform of the hmtx table: the left side bearings are dropped when they are equal to
+// the xMin of their glyphs, the decoder gets them back from the glyf table. Only possible when the
+// glyf table is transformed as well.
+final class HmtxTransform {
+
+  private static final int PROPORTIONAL_LSB_DROPPED = 1;
+  private static final int MONOSPACED_LSB_DROPPED = 1 << 1;
+
+  private HmtxTransform() {}
+
+  // The flags of the transform, 0 when none of the left side bearings can be dropped.
+  static int flags(final byte[] hmtx, final int hmtxOffset, final int numberOfHMetrics,
+                   final byte[] glyf, final int glyfOffset, final int[] offsets, final int numGlyphs) {
+    boolean proportional = numberOfHMetrics > 0;
+    for (int g=0; g<numberOfHMetrics && proportional; ++g) {
+      proportional = getShort(hmtx, hmtxOffset + g * 4 + 2) == xMin(glyf, glyfOffset, offsets, g);
+    }
+    boolean monospaced = numGlyphs > numberOfHMetrics;
+    for (int g=numberOfHMetrics; g<numGlyphs && monospaced; ++g) {
+      final int lsb = getShort(hmtx, hmtxOffset + numberOfHMetrics * 4 + (g - numberOfHMetrics) * 2);
+      monospaced = lsb == xMin(glyf, glyfOffset, offsets, g);
+    }
+    return (proportional ? PROPORTIONAL_LSB_DROPPED : 0) | (monospaced ? MONOSPACED_LSB_DROPPED : 0);
+  }
+
+  // The length of the transformed table, for non zero flags.
+  static int length(final int flags, final int numberOfHMetrics, final int numGlyphs) {
+    return 1 + numberOfHMetrics * 2 +
+           ((flags & PROPORTIONAL_LSB_DROPPED) != 0 ? 0 : numberOfHMetrics * 2) +
+           ((flags & MONOSPACED_LSB_DROPPED) != 0 ? 0 : (numGlyphs - numberOfHMetrics) * 2);
+  }
+
+  // Writes the transformed table at the given offset, for non zero flags.
+  static void write(final int flags, final byte[] hmtx, final int hmtxOffset, final int numberOfHMetrics,
+                    final int numGlyphs, final byte[] bytes, final int offset) {
+    bytes[offset] = (byte)flags;
+    int position = offset + 1;
+    for (int g=0; g<numberOfHMetrics; ++g) {
+      bytes[position++] = hmtx[hmtxOffset + g * 4];
+      bytes[position++] = hmtx[hmtxOffset + g * 4 + 1];
+    }
+    if ((flags & PROPORTIONAL_LSB_DROPPED) == 0) {
+      for (int g=0; g<numberOfHMetrics; ++g) {
+        bytes[position++] = hmtx[hmtxOffset + g * 4 + 2];
+        bytes[position++] = hmtx[hmtxOffset + g * 4 + 3];
+      }
+    }
+    if ((flags & MONOSPACED_LSB_DROPPED) == 0) {
+      final int length = (numGlyphs - numberOfHMetrics) * 2;
+      System.arraycopy(hmtx, hmtxOffset + numberOfHMetrics * 4, bytes, position, length);
+    }
+  }
+
+  // The xMin the decoder uses: 0 for empty glyphs.
+  private static int xMin(final byte[] glyf, final int glyfOffset, final int[] offsets, final int glyphId) {
+    if (offsets[glyphId + 1] <= offsets[glyphId]) return 0;
+    final int start = glyfOffset + offsets[glyphId];
+    return getShort(glyf, start) == 0 ? 0 : getShort(glyf, start + 2);
+  }
+
+  private static int getShort(final byte[] bytes, final int offset) {
+    return (short)(((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff));
+  }
+
+}
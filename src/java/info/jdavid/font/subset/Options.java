@@ -0,0 +1,203 @@
+package info.jdavid.font.subset;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+
+/**
+ * Immutable subset and encoding options. Each setter returns a modified copy.
+ */
+public final class Options {
+
+  public static final int DEFAULT_BROTLI_QUALITY = 11;
+  public static final int DEFAULT_BROTLI_WINDOW = 22;
+  public static final int DEFAULT_DEFLATE_LEVEL = 9;
+  public static final int DEFAULT_DEFLATE_ITERATIONS = 15;
+
+  public static final Options DEFAULT =
+    new Options(false, DEFAULT_BROTLI_QUALITY, DEFAULT_BROTLI_WINDOW, false,
+                DEFAULT_DEFLATE_LEVEL, DEFAULT_DEFLATE_ITERATIONS, null, null);
+
+  private final boolean preserveGlyphIds;
+  private final int brotliQuality;
+  private final int brotliWindow;
+  private final boolean brotliFontMode;
+  private final int deflateLevel;
+  private final int deflateIterations;
+  private final String codec;
+  private final Executor executor;
+
+  private Options(final boolean preserveGlyphIds,
+                  final int brotliQuality, final int brotliWindow, final boolean brotliFontMode,
+                  final int deflateLevel, final int deflateIterations,
+                  final String codec, final Executor executor) {
+    this.preserveGlyphIds = preserveGlyphIds;
+    this.brotliQuality = brotliQuality;
+    this.brotliWindow = brotliWindow;
+    this.brotliFontMode = brotliFontMode;
+    this.deflateLevel = deflateLevel;
+    this.deflateIterations = deflateIterations;
+    this.codec = codec;
+    this.executor = executor;
+  }
+
+  /**
+   * Keeps the glyph ids of the original font instead of renumbering the glyphs of the subset.
+   * Unused glyphs are left empty, and the glyph data of a given glyph is the same in every subset.
+   * Only applies to fonts with TrueType outlines.
+   */
+  public Options preserveGlyphIds(final boolean preserveGlyphIds) {
+    return new Options(preserveGlyphIds, brotliQuality, brotliWindow, brotliFontMode, deflateLevel, deflateIterations,
+                       codec, executor);
+  }
+
+  public boolean preserveGlyphIds() {
+    return preserveGlyphIds;
+  }
+
+  /**
+   * Sets the brotli quality used for woff2, from 0 (fastest) to 11 (smallest, the default).
+   */
+  public Options brotliQuality(final int brotliQuality) {
+    if (brotliQuality < 0 || brotliQuality > 11) throw new IllegalArgumentException();
+    return new Options(preserveGlyphIds, brotliQuality, brotliWindow, brotliFontMode, deflateLevel, deflateIterations,
+                       codec, executor);
+  }
+
+  public int brotliQuality() {
+    return brotliQuality;
+  }
+
+  /**
+   * Sets the base 2 logarithm of the brotli window size used for woff2, from 10 to 24 (22 by default).
+   */
+  public Options brotliWindow(final int brotliWindow) {
+    if (brotliWindow < 10 || brotliWindow > 24) throw new IllegalArgumentException();
+    return new Options(preserveGlyphIds, brotliQuality, brotliWindow, brotliFontMode, deflateLevel, deflateIterations,
+                       codec, executor);
+  }
+
+  public int brotliWindow() {
+    return brotliWindow;
+  }
+
+  /**
+   * Uses the brotli mode tuned for font data instead of the generic mode for woff2.
+   */
+  public Options brotliFontMode(final boolean brotliFontMode) {
+    return new Options(preserveGlyphIds, brotliQuality, brotliWindow, brotliFontMode, deflateLevel, deflateIterations,
+                       codec, executor);
+  }
+
+  public boolean brotliFontMode() {
+    return brotliFontMode;
+  }
+
+  /**
+   * Sets the deflate level used for woff with the zlib codec, from 0 to 9 (the default).
+   */
+  public Options deflateLevel(final int deflateLevel) {
+    if (deflateLevel < 0 || deflateLevel > 9) throw new IllegalArgumentException();
+    return new Options(preserveGlyphIds, brotliQuality, brotliWindow, brotliFontMode, deflateLevel, deflateIterations,
+                       codec, executor);
+  }
+
+  public int deflateLevel() {
+    return deflateLevel;
+  }
+
+  /**
+   * Sets the number of iterations used for woff with the zlib-zopfli codec, at least 1 (15 by default).
+   */
+  public Options deflateIterations(final int deflateIterations) {
+    if (deflateIterations < 1) throw new IllegalArgumentException();
+    return new Options(preserveGlyphIds, brotliQuality, brotliWindow, brotliFontMode, deflateLevel, deflateIterations,
+                       codec, executor);
+  }
+
+  public int deflateIterations() {
+    return deflateIterations;
+  }
+
+  /**
+   * Selects a {@link Codec} by name (null for the default), for the formats that use its stream
+   * format. By default, the first available codec for the format is used (native brotli first).
+   */
+  public Options codec(final String codec) {
+    if (codec != null) Codecs.get(codec);
+    return new Options(preserveGlyphIds, brotliQuality, brotliWindow, brotliFontMode, deflateLevel, deflateIterations,
+                       codec, executor);
+  }
+
+  public String codec() {
+    return codec;
+  }
+
+  /**
+   * Compresses the tables of woff files in parallel on the executor (null for the calling thread).
+   * Woff2 compresses all the tables as a single stream, so only the glyf and hmtx transforms run
+   * in parallel. The output is the same either way, so the executor is not part of cache keys.
+   * The calling thread runs its share of the tasks rather than waiting for them, so the executor can
+   * also be the one given to {@link Extractor#all(Executor)} or {@link Extractor#shards}, even a
+   * fixed pool.
+   */
+  public Options executor(final Executor executor) {
+    return new Options(preserveGlyphIds, brotliQuality, brotliWindow, brotliFontMode, deflateLevel, deflateIterations,
+                       codec, executor);
+  }
+
+  public Executor executor() {
+    return executor;
+  }
+
+  // The codec parameters for a file format: the brotli settings for woff2, the deflate ones for woff.
+  Codec.Parameters parameters(final Format format) {
+    if (format == Format.WOFF) {
+      return new Codec.Parameters(deflateLevel, Codec.Parameters.DEFAULT.window(), false, deflateIterations);
+    }
+    return new Codec.Parameters(brotliQuality, brotliWindow, brotliFontMode, Codec.Parameters.DEFAULT.iterations());
+  }
+
+  // Identifies the options that apply to the format in cache keys. Only the values that differ
+  // from the defaults are listed.
+  String key(final Format format) {
+    final StringBuilder key = new StringBuilder();
+    if (preserveGlyphIds) key.append('g');
+    if (format == Format.WOFF2) {
+      if (brotliQuality != DEFAULT_BROTLI_QUALITY) key.append('q').append(brotliQuality);
+      if (brotliWindow != DEFAULT_BROTLI_WINDOW) key.append('w').append(brotliWindow);
+      if (brotliFontMode) key.append('f');
+    }
+    else if (format == Format.WOFF) {
+      if (deflateLevel != DEFAULT_DEFLATE_LEVEL) key.append('l').append(deflateLevel);
+      if (deflateIterations != DEFAULT_DEFLATE_ITERATIONS) key.append('i').append(deflateIterations);
+    }
+    if (codec != null && format != Format.TTF) key.append('c').append(codec);
+    return key.toString();
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (!(o instanceof Options)) return false;
+    final Options other = (Options)o;
+    return preserveGlyphIds == other.preserveGlyphIds && brotliQuality == other.brotliQuality &&
+           brotliWindow == other.brotliWindow && brotliFontMode == other.brotliFontMode &&
+           deflateLevel == other.deflateLevel && deflateIterations == other.deflateIterations &&
+           Objects.equals(codec, other.codec) && executor == other.executor;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(preserveGlyphIds, brotliQuality, brotliWindow, brotliFontMode,
+                        deflateLevel, deflateIterations, codec, System.identityHashCode(executor));
+  }
+
+  @Override
+  public String toString() {
+    return "Options{preserveGlyphIds=" + preserveGlyphIds + ", brotliQuality=" + brotliQuality +
+           ", brotliWindow=" + brotliWindow + ", brotliFontMode=" + brotliFontMode +
+           ", deflateLevel=" + deflateLevel + ", deflateIterations=" + deflateIterations +
+           ", codec=" + codec + ", executor=" + executor + "}";
+  }
+
+}
@@ -0,0 +1,67 @@
+package info.jdavid.font.subset;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+// Runs the tasks of a writer on the executor of the options. The calling thread takes tasks as well
+// instead of only waiting for them, and it only waits for the tasks that another thread has already
+// started. The writers are often called from a task of that same executor (by Extractor.all() and
+// Extractor.shards() with a shared pool), and waiting for tasks still in its queue could then
+// deadlock a fixed pool with all its threads busy: with this, the queued tasks are run by the caller.
+final class Parallel {
+
+  private Parallel() {}
+
+  static void run(final Runnable[] tasks, final Executor executor) {
+    if (executor == null || tasks.length < 2) {
+      for (final Runnable task: tasks) task.run();
+      return;
+    }
+    final AtomicInteger next = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(tasks.length);
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    final Runnable worker = () -> {
+      for (int i=next.getAndIncrement(); i<tasks.length; i=next.getAndIncrement()) {
+        try {
+          tasks[i].run();
+        }
+        catch (final Throwable e) {
+          error.compareAndSet(null, e);
+        }
+        finally {
+          done.countDown();
+        }
+      }
+    };
+    for (int i=1; i<tasks.length; ++i) {
+      try {
+        executor.execute(worker);
+      }
+      catch (final RejectedExecutionException ignore) {
+        // The remaining tasks are run by this thread.
+        break;
+      }
+    }
+    worker.run();
+    // Every task has been taken at this point, the ones still running are on other threads.
+    boolean interrupted = false;
+    while (true) {
+      try {
+        done.await();
+        break;
+      }
+      catch (final InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+    final Throwable e = error.get();
+    if (e instanceof RuntimeException) throw (RuntimeException)e;
+    if (e instanceof Error) throw (Error)e;
+  }
+
+}
@@ -0,0 +1,252 @@
+package info.jdavid.font.subset;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.typography.font.sfntly.Font;
+import com.google.typography.font.sfntly.FontFactory;
+import com.google.typography.font.sfntly.Tag;
+import com.google.typography.font.sfntly.data.ReadableFontData;
+import com.google.typography.font.sfntly.table.Table;
+import com.google.typography.font.sfntly.table.truetype.LocaTable;
+
+
+// Subsets a TrueType font without renumbering its glyphs: the glyphs of the subset keep the ids
+// they have in the original font, and all the other glyphs below the highest one kept are empty.
+// The tables are rebuilt directly from the raw data of the original tables.
+final class PreservingSubsetter {
+
+  private static final int[] TABLES = {
+    Tag.head, Tag.hhea, Tag.maxp, Tag.OS_2, Tag.hmtx, Tag.cmap, Tag.loca, Tag.glyf, Tag.name, Tag.post, Tag.gasp
+  };
+
+  private static final int HEAD_INDEX_TO_LOC_FORMAT = 50;
+  private static final int HHEA_NUMBER_OF_HMETRICS = 34;
+  private static final int MAXP_NUM_GLYPHS = 4;
+  private static final int POST_HEADER_SIZE = 32;
+  private static final int MAX_SUBTABLE_SIZE = 0xffff;
+
+  private PreservingSubsetter() {}
+
+  static Font subset(final FontFactory factory, final Font font, final FontIndex index,
+                     final CodepointSet codepoints) {
+    final List<Integer> glyphIds = index.closure(codepoints);
+    final int numGlyphs = glyphIds.get(glyphIds.size() - 1) + 1;
+
+    final LocaTable locaTable = font.getTable(Tag.loca);
+    final ReadableFontData glyfData = font.<Table>getTable(Tag.glyf).readFontData();
+    final int[] offsets = new int[numGlyphs + 1];
+    int size = 0;
+    for (final int glyphId: glyphIds) size += (locaTable.glyphLength(glyphId) + 3) & -4;
+    final byte[] glyf = new byte[size];
+    int offset = 0;
+    int g = 0;
+    for (final int glyphId: glyphIds) {
+      while (g <= glyphId) offsets[g++] = offset;
+      final int length = locaTable.glyphLength(glyphId);
+      glyfData.readBytes(locaTable.glyphOffset(glyphId), glyf, offset, length);
+      offset += (length + 3) & -4;
+    }
+    offsets[numGlyphs] = offset;
+    // The glyphs are padded to 4 bytes, so the offsets are always even.
+    final boolean shortLoca = offset <= 0x1fffe;
+    final byte[] loca = new byte[(numGlyphs + 1) * (shortLoca ? 2 : 4)];
+    for (int i=0; i<=numGlyphs; ++i) {
+      if (shortLoca) putShort(loca, i * 2, offsets[i] >> 1);
+      else putInt(loca, i * 4, offsets[i]);
+    }
+
+    final byte[] head = bytes(font, Tag.head);
+    putShort(head, HEAD_INDEX_TO_LOC_FORMAT, shortLoca ? 0 : 1);
+    final byte[] maxp = bytes(font, Tag.maxp);
+    putShort(maxp, MAXP_NUM_GLYPHS, numGlyphs);
+
+    final byte[] hhea = bytes(font, Tag.hhea);
+    final byte[] metrics = hmtx(font.<Table>getTable(Tag.hmtx).readFontData(),
+                                getShort(hhea, HHEA_NUMBER_OF_HMETRICS), glyphIds, numGlyphs);
+    final int numberOfHMetrics = numberOfHMetrics(metrics, numGlyphs);
+    putShort(hhea, HHEA_NUMBER_OF_HMETRICS, numberOfHMetrics);
+    final byte[] hmtx = pack(metrics, numberOfHMetrics, numGlyphs);
+
+    final byte[] post = font.hasTable(Tag.post) ? Arrays.copyOf(bytes(font, Tag.post), POST_HEADER_SIZE) : null;
+    if (post != null) putInt(post, 0, 0x00030000);
+
+    final Font.Builder builder = factory.newFontBuilder();
+    for (final int tag: TABLES) {
+      final byte[] bytes;
+      if (tag == Tag.head) bytes = head;
+      else if (tag == Tag.hhea) bytes = hhea;
+      else if (tag == Tag.maxp) bytes = maxp;
+      else if (tag == Tag.hmtx) bytes = hmtx;
+      else if (tag == Tag.cmap) bytes = cmap(index, codepoints);
+      else if (tag == Tag.loca) bytes = loca;
+      else if (tag == Tag.glyf) bytes = glyf;
+      else if (tag == Tag.post) bytes = post;
+      else bytes = font.hasTable(tag) ? bytes(font, tag) : null;
+      if (bytes != null) builder.newTableBuilder(tag, ReadableFontData.createReadableFontData(bytes));
+    }
+    return builder.build();
+  }
+
+  // Full metrics for every glyph, with zero advance and lsb for the glyphs that are not kept.
+  private static byte[] hmtx(final ReadableFontData data, final int numberOfHMetrics,
+                             final List<Integer> glyphIds, final int numGlyphs) {
+    final byte[] hmtx = new byte[numGlyphs * 4];
+    for (final int glyphId: glyphIds) {
+      final int advance = data.readUShort(Math.min(glyphId, numberOfHMetrics - 1) * 4);
+      final int lsb = glyphId < numberOfHMetrics ?
+                      data.readShort(glyphId * 4 + 2) :
+                      data.readShort(numberOfHMetrics * 4 + (glyphId - numberOfHMetrics) * 2);
+      putShort(hmtx, glyphId * 4, advance);
+      putShort(hmtx, glyphId * 4 + 2, lsb);
+    }
+    return hmtx;
+  }
+
+  // The number of metrics left once the trailing run of equal advances is removed.
+  private static int numberOfHMetrics(final byte[] hmtx, final int numGlyphs) {
+    final int last = getShort(hmtx, (numGlyphs - 1) * 4);
+    int count = numGlyphs;
+    while (count > 1 && getShort(hmtx, (count - 2) * 4) == last) --count;
+    return count;
+  }
+
+  // The hmtx table with only the lsb for the glyphs after the last full metric.
+  private static byte[] pack(final byte[] hmtx, final int numberOfHMetrics, final int numGlyphs) {
+    final byte[] packed = Arrays.copyOf(hmtx, numberOfHMetrics * 4 + (numGlyphs - numberOfHMetrics) * 2);
+    for (int g=numberOfHMetrics; g<numGlyphs; ++g) {
+      packed[numberOfHMetrics * 4 + (g - numberOfHMetrics) * 2] = hmtx[g * 4 + 2];
+      packed[numberOfHMetrics * 4 + (g - numberOfHMetrics) * 2 + 1] = hmtx[g * 4 + 3];
+    }
+    return packed;
+  }
+
+  // A (3,1) format 4 subtable for the BMP and a (3,10) format 12 subtable when there are codepoints
+  // outside of the BMP (or too many segments for format 4).
+  private static byte[] cmap(final FontIndex index, final CodepointSet codepoints) {
+    int[] mapped = new int[256];
+    int count = 0;
+    for (int i=0; i<codepoints.rangeCount(); ++i) {
+      for (int c=codepoints.rangeStart(i); c<=codepoints.rangeEnd(i); ++c) {
+        final int glyphId = index.glyphId(c);
+        if (glyphId == 0) continue;
+        if (count + 2 > mapped.length) mapped = Arrays.copyOf(mapped, mapped.length * 2);
+        mapped[count++] = c;
+        mapped[count++] = glyphId;
+      }
+    }
+    final byte[] format4 = format4(mapped, count);
+    final byte[] format12 = format4 == null || count > 0 && mapped[count - 2] >= 0xffff ?
+                            format12(mapped, count) : null;
+    final int numTables = (format4 == null ? 0 : 1) + (format12 == null ? 0 : 1);
+    final byte[] cmap = new byte[4 + numTables * 8 +
+                                 (format4 == null ? 0 : format4.length) +
+                                 (format12 == null ? 0 : format12.length)];
+    putShort(cmap, 2, numTables);
+    int record = 4;
+    int offset = 4 + numTables * 8;
+    if (format4 != null) {
+      putShort(cmap, record, 3);
+      putShort(cmap, record + 2, 1);
+      putInt(cmap, record + 4, offset);
+      System.arraycopy(format4, 0, cmap, offset, format4.length);
+      record += 8;
+      offset += format4.length;
+    }
+    if (format12 != null) {
+      putShort(cmap, record, 3);
+      putShort(cmap, record + 2, 10);
+      putInt(cmap, record + 4, offset);
+      System.arraycopy(format12, 0, cmap, offset, format12.length);
+    }
+    return cmap;
+  }
+
+  // Segments of consecutive codepoints with a constant glyph id delta, and the final 0xffff segment.
+  private static byte[] format4(final int[] mapped, final int count) {
+    int[] segments = new int[64];
+    int segCount = 0;
+    for (int i=0; i<count; i+=2) {
+      final int c = mapped[i];
+      if (c >= 0xffff) break;
+      final int delta = mapped[i + 1] - c;
+      if (segCount > 0 && segments[segCount * 3 - 2] == c - 1 && segments[segCount * 3 - 1] == delta) {
+        segments[segCount * 3 - 2] = c;
+        continue;
+      }
+      if ((segCount + 1) * 3 > segments.length) segments = Arrays.copyOf(segments, segments.length * 2);
+      segments[segCount * 3] = c;
+      segments[segCount * 3 + 1] = c;
+      segments[segCount * 3 + 2] = delta;
+      ++segCount;
+    }
+    if ((segCount + 1) * 3 > segments.length) segments = Arrays.copyOf(segments, segments.length + 3);
+    segments[segCount * 3] = 0xffff;
+    segments[segCount * 3 + 1] = 0xffff;
+    segments[segCount * 3 + 2] = 1;
+    ++segCount;
+    final int length = 16 + segCount * 8;
+    if (length > MAX_SUBTABLE_SIZE) return null;
+    final byte[] bytes = new byte[length];
+    final int searchRange = 2 * Integer.highestOneBit(segCount);
+    putShort(bytes, 0, 4);
+    putShort(bytes, 2, length);
+    putShort(bytes, 6, segCount * 2);
+    putShort(bytes, 8, searchRange);
+    putShort(bytes, 10, Integer.numberOfTrailingZeros(searchRange >> 1));
+    putShort(bytes, 12, segCount * 2 - searchRange);
+    for (int i=0; i<segCount; ++i) {
+      putShort(bytes, 14 + i * 2, segments[i * 3 + 1]);
+      putShort(bytes, 16 + segCount * 2 + i * 2, segments[i * 3]);
+      putShort(bytes, 16 + segCount * 4 + i * 2, segments[i * 3 + 2] & 0xffff);
+      // idRangeOffset stays 0.
+    }
+    return bytes;
+  }
+
+  // Groups of consecutive codepoints mapped to consecutive glyph ids.
+  private static byte[] format12(final int[] mapped, final int count) {
+    int groups = 0;
+    for (int i=0; i<count; i+=2) {
+      if (i == 0 || mapped[i] != mapped[i - 2] + 1 || mapped[i + 1] != mapped[i - 1] + 1) ++groups;
+    }
+    final byte[] bytes = new byte[16 + groups * 12];
+    putShort(bytes, 0, 12);
+    putInt(bytes, 4, bytes.length);
+    putInt(bytes, 12, groups);
+    int offset = 4;
+    for (int i=0; i<count; i+=2) {
+      if (i == 0 || mapped[i] != mapped[i - 2] + 1 || mapped[i + 1] != mapped[i - 1] + 1) {
+        offset += 12;
+        putInt(bytes, offset, mapped[i]);
+        putInt(bytes, offset + 8, mapped[i + 1]);
+      }
+      putInt(bytes, offset + 4, mapped[i]);
+    }
+    return bytes;
+  }
+
+  private static byte[] bytes(final Font font, final int tag) {
+    final ReadableFontData data = font.<Table>getTable(tag).readFontData();
+    final byte[] bytes = new byte[data.length()];
+    data.readBytes(0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  private static int getShort(final byte[] bytes, final int offset) {
+    return ((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff);
+  }
+
+  private static void putShort(final byte[] bytes, final int offset, final int value) {
+    bytes[offset] = (byte)(value >>> 8);
+    bytes[offset + 1] = (byte)value;
+  }
+
+  private static void putInt(final byte[] bytes, final int offset, final int value) {
+    bytes[offset] = (byte)(value >>> 24);
+    bytes[offset + 1] = (byte)(value >>> 16);
+    bytes[offset + 2] = (byte)(value >>> 8);
+    bytes[offset + 3] = (byte)value;
+  }
+
+}
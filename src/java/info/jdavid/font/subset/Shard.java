@@ -0,0 +1,131 @@
+package info.jdavid.font.subset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+
+/**
+ * One subset of a font split into several files, with the codepoints it covers.
+ */
+public final class Shard {
+
+  private final CodepointSet codepoints;
+  private final Format format;
+  private final byte[] bytes;
+
+  Shard(final CodepointSet codepoints, final Format format, final byte[] bytes) {
+    this.codepoints = codepoints;
+    this.format = format;
+    this.bytes = bytes;
+  }
+
+  public CodepointSet codepoints() {
+    return codepoints;
+  }
+
+  public Format format() {
+    return format;
+  }
+
+  public byte[] bytes() {
+    return bytes;
+  }
+
+  public String unicodeRange() {
+    return codepoints.toUnicodeRange();
+  }
+
+  /**
+   * Splits the codepoints into about count sets of similar sizes, keeping unicode blocks together
+   * unless a block alone is bigger than a shard.
+   */
+  public static List<CodepointSet> byUnicodeBlock(final CodepointSet codepoints, final int count) {
+    if (count <= 0) throw new IllegalArgumentException();
+    final List<CodepointSet> shards = new ArrayList<>(count);
+    final int total = codepoints.size();
+    if (total == 0) return shards;
+    final int target = (total + count - 1) / count;
+    final int[] shard = new int[total];
+    int shardSize = 0;
+    final int[] unit = new int[target];
+    int unitSize = 0;
+    Character.UnicodeBlock block = null;
+    for (int i=0; i<codepoints.rangeCount(); ++i) {
+      for (int c=codepoints.rangeStart(i); c<=codepoints.rangeEnd(i); ++c) {
+        final Character.UnicodeBlock b = Character.UnicodeBlock.of(c);
+        if (unitSize > 0 && (b != block || unitSize == target)) {
+          if (shardSize > 0 && shardSize + unitSize > target) {
+            shards.add(CodepointSet.of(Arrays.copyOf(shard, shardSize)));
+            shardSize = 0;
+          }
+          System.arraycopy(unit, 0, shard, shardSize, unitSize);
+          shardSize += unitSize;
+          unitSize = 0;
+        }
+        block = b;
+        unit[unitSize++] = c;
+      }
+    }
+    if (shardSize > 0 && shardSize + unitSize > target) {
+      shards.add(CodepointSet.of(Arrays.copyOf(shard, shardSize)));
+      shardSize = 0;
+    }
+    System.arraycopy(unit, 0, shard, shardSize, unitSize);
+    shardSize += unitSize;
+    shards.add(CodepointSet.of(Arrays.copyOf(shard, shardSize)));
+    return shards;
+  }
+
+  /**
+   * Generates one @font-face rule per shard, url giving the location of the shard at each index.
+   */
+  public static String css(final String family, final List<Shard> shards, final IntFunction<String> url) {
+    final StringBuilder builder = new StringBuilder(256 * shards.size());
+    for (int i=0; i<shards.size(); ++i) {
+      final Shard shard = shards.get(i);
+      builder.append("@font-face {\n");
+      builder.append("  font-family: ");
+      appendString(builder, family).append(";\n");
+      builder.append("  src: url(");
+      appendString(builder, url.apply(i)).append(") format('").
+        append(cssFormat(shard.format)).append("');\n");
+      builder.append("  unicode-range: ").append(shard.unicodeRange()).append(";\n");
+      builder.append("}\n");
+    }
+    return builder.toString();
+  }
+
+  // Quotes the value as a css string, escaping the quote, backslashes and control characters.
+  private static StringBuilder appendString(final StringBuilder builder, final String value) {
+    builder.append('\'');
+    for (int i=0; i<value.length(); ++i) {
+      final char c = value.charAt(i);
+      if (c == '\'' || c == '\\') {
+        builder.append('\\').append(c);
+      }
+      else if (c < 0x20 || c == 0x7f) {
+        builder.append('\\').append(Integer.toHexString(c)).append(' ');
+      }
+      else {
+        builder.append(c);
+      }
+    }
+    return builder.append('\'');
+  }
+
+  private static String cssFormat(final Format format) {
+    switch (format) {
+      case TTF:
+        return "truetype";
+      case WOFF:
+        return "woff";
+      case WOFF2:
+        return "woff2";
+      default:
+        throw new IllegalArgumentException();
+    }
+  }
+
+}
@@ -0,0 +1,48 @@
+package info.jdavid.font.subset;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+
+/**
+ * Result of a {@link ShardPlanner}: the codepoint sets of the shards, and the expected bytes and
+ * requests per page view of the corpus it was computed from.
+ */
+public final class ShardPlan {
+
+  private final List<CodepointSet> shards;
+  private final double expectedBytes;
+  private final double expectedRequests;
+
+  ShardPlan(final List<CodepointSet> shards, final double expectedBytes, final double expectedRequests) {
+    this.shards = Collections.unmodifiableList(shards);
+    this.expectedBytes = expectedBytes;
+    this.expectedRequests = expectedRequests;
+  }
+
+  public List<CodepointSet> shards() {
+    return shards;
+  }
+
+  public double expectedBytes() {
+    return expectedBytes;
+  }
+
+  public double expectedRequests() {
+    return expectedRequests;
+  }
+
+  public List<Shard> encode(final Extractor extractor, final Format format,
+                            final Executor executor) throws IOException {
+    return extractor.shards(shards, format, executor);
+  }
+
+  @Override
+  public String toString() {
+    return "ShardPlan{shards=" + shards.size() + ", expectedBytes=" + Math.round(expectedBytes) +
+           ", expectedRequests=" + expectedRequests + "}";
+  }
+
+}
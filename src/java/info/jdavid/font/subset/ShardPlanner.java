@@ -0,0 +1,192 @@
+package info.jdavid.font.subset;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Groups the codepoints of a font into shards from a corpus of weighted pages (typically
+ * weighted by visits), so that the expected number of bytes and requests per page view is small.
+ * <p>
+ * Codepoints are added in decreasing order of frequency. Each one goes to the shard where it adds
+ * the least to the expected cost (bytes plus a per request cost for every shard a page needs), or
+ * to a new shard when that is cheaper and the shard limit has not been reached. Codepoints that
+ * often appear together end up in the same shard because adding a codepoint to a shard that is
+ * already needed by the same pages costs only its own bytes.
+ * The cost of each codepoint is its glyph size, scaled by the compression ratio measured on the
+ * corpus subset. Codepoints of the font that never appear in the corpus are put in additional
+ * shards split along unicode blocks.
+ */
+public final class ShardPlanner {
+
+  private final Extractor extractor;
+  private final List<CodepointSet> pages = new ArrayList<>();
+  private final List<Double> weights = new ArrayList<>();
+  private int maxShards = 16;
+  private int requestCost = 1024;
+
+  public ShardPlanner(final Extractor extractor) {
+    this.extractor = extractor;
+  }
+
+  public ShardPlanner addPage(final CharSequence text, final double weight) {
+    return addPage(CodepointSet.of(text), weight);
+  }
+
+  public ShardPlanner addPage(final CodepointSet codepoints, final double weight) {
+    if (weight < 0) throw new IllegalArgumentException();
+    pages.add(codepoints);
+    weights.add(weight);
+    return this;
+  }
+
+  /**
+   * Maximum number of shards for the codepoints found in the corpus (16 by default).
+   */
+  public ShardPlanner maxShards(final int maxShards) {
+    if (maxShards <= 0) throw new IllegalArgumentException();
+    this.maxShards = maxShards;
+    return this;
+  }
+
+  /**
+   * Cost of one extra request, in bytes (1024 by default).
+   */
+  public ShardPlanner requestCost(final int requestCost) {
+    if (requestCost < 0) throw new IllegalArgumentException();
+    this.requestCost = requestCost;
+    return this;
+  }
+
+  public ShardPlan plan() throws IOException {
+    final CodepointSet coverage = extractor.coverage();
+    final int pageCount = pages.size();
+    final int words = (pageCount + 63) >> 6;
+    final double[] pageWeights = new double[pageCount];
+    double totalWeight = 0;
+    CodepointSet corpus = CodepointSet.EMPTY;
+    for (int p=0; p<pageCount; ++p) {
+      pageWeights[p] = weights.get(p);
+      totalWeight += pageWeights[p];
+      corpus = corpus.union(pages.get(p).intersection(coverage));
+    }
+    if (totalWeight == 0) totalWeight = 1;
+    for (int p=0; p<pageCount; ++p) pageWeights[p] /= totalWeight;
+
+    // Pages of each codepoint of the corpus, as sorted lists of page indices. Most codepoints only
+    // appear on a few pages, so this is much smaller than a bitset of every page per codepoint.
+    final int[] codepoints = corpus.toArray();
+    final int[][] codepointPages = new int[codepoints.length][];
+    final int[] codepointPageCounts = new int[codepoints.length];
+    for (int p=0; p<pageCount; ++p) {
+      final CodepointSet page = pages.get(p);
+      for (int i=0; i<page.rangeCount(); ++i) {
+        for (int c=page.rangeStart(i); c<=page.rangeEnd(i); ++c) {
+          final int index = Arrays.binarySearch(codepoints, c);
+          if (index < 0) continue;
+          int[] list = codepointPages[index];
+          final int count = codepointPageCounts[index];
+          if (list == null) codepointPages[index] = list = new int[4];
+          else if (count == list.length) codepointPages[index] = list = Arrays.copyOf(list, count * 2);
+          list[count] = p;
+          codepointPageCounts[index] = count + 1;
+        }
+      }
+    }
+    final double[] frequencies = new double[codepoints.length];
+    for (int i=0; i<codepoints.length; ++i) {
+      codepointPages[i] = Arrays.copyOf(codepointPages[i], codepointPageCounts[i]);
+      frequencies[i] = weight(codepointPages[i], null, pageWeights);
+    }
+
+    // Measured costs: the fixed size of a shard, and the compressed size of the glyphs.
+    final int emptySize = extractor.woff2(CodepointSet.EMPTY).length;
+    final int corpusSize = extractor.woff2(corpus).length;
+    long glyphSizes = 0;
+    for (final int c: codepoints) glyphSizes += extractor.glyphSize(c);
+    final double[] costs = new double[codepoints.length];
+    for (int i=0; i<codepoints.length; ++i) {
+      costs[i] = glyphSizes == 0 ?
+                 (double)(corpusSize - emptySize) / codepoints.length :
+                 (double)(corpusSize - emptySize) * extractor.glyphSize(codepoints[i]) / glyphSizes;
+    }
+    final double shardCost = emptySize + requestCost;
+
+    // Most frequent codepoints first.
+    final Integer[] order = new Integer[codepoints.length];
+    for (int i=0; i<order.length; ++i) order[i] = i;
+    Arrays.sort(order, (a, b) -> Double.compare(frequencies[b], frequencies[a]));
+
+    // Pages of each shard, as bitsets: there are only a few shards.
+    final List<long[]> shardPages = new ArrayList<>();
+    final List<int[]> shardCodepoints = new ArrayList<>();
+    final List<Integer> shardSizes = new ArrayList<>();
+    final List<Double> shardBytes = new ArrayList<>();
+    final List<Double> shardWeights = new ArrayList<>();
+    for (final int i: order) {
+      final int[] pagesOfCodepoint = codepointPages[i];
+      int best = -1;
+      double bestDelta = shardPages.size() < maxShards ? frequencies[i] * (shardCost + costs[i]) : Double.MAX_VALUE;
+      for (int s=0; s<shardPages.size(); ++s) {
+        final double weight = shardWeights.get(s);
+        final double added = weight(pagesOfCodepoint, shardPages.get(s), pageWeights);
+        final double bytes = shardBytes.get(s) + shardCost;
+        final double delta = (weight + added) * (bytes + costs[i]) - weight * bytes;
+        if (delta < bestDelta) {
+          best = s;
+          bestDelta = delta;
+        }
+      }
+      if (best == -1) {
+        final long[] pagesOfShard = new long[words];
+        for (final int p: pagesOfCodepoint) pagesOfShard[p >> 6] |= 1L << p;
+        shardPages.add(pagesOfShard);
+        shardCodepoints.add(new int[] { codepoints[i] });
+        shardSizes.add(1);
+        shardBytes.add(costs[i]);
+        shardWeights.add(frequencies[i]);
+      }
+      else {
+        final long[] pagesOfShard = shardPages.get(best);
+        final double added = weight(pagesOfCodepoint, pagesOfShard, pageWeights);
+        for (final int p: pagesOfCodepoint) pagesOfShard[p >> 6] |= 1L << p;
+        int[] members = shardCodepoints.get(best);
+        final int size = shardSizes.get(best);
+        if (size == members.length) shardCodepoints.set(best, members = Arrays.copyOf(members, size * 2));
+        members[size] = codepoints[i];
+        shardSizes.set(best, size + 1);
+        shardBytes.set(best, shardBytes.get(best) + costs[i]);
+        shardWeights.set(best, shardWeights.get(best) + added);
+      }
+    }
+
+    final List<CodepointSet> shards = new ArrayList<>();
+    double expectedBytes = 0;
+    double expectedRequests = 0;
+    int largest = 0;
+    for (int s=0; s<shardPages.size(); ++s) {
+      shards.add(CodepointSet.of(Arrays.copyOf(shardCodepoints.get(s), shardSizes.get(s))));
+      expectedBytes += shardWeights.get(s) * (shardBytes.get(s) + emptySize);
+      expectedRequests += shardWeights.get(s);
+      largest = Math.max(largest, shardSizes.get(s));
+    }
+    final CodepointSet rest = coverage.minus(corpus);
+    if (!rest.isEmpty()) {
+      final int target = Math.max(largest, 256);
+      shards.addAll(Shard.byUnicodeBlock(rest, (rest.size() + target - 1) / target));
+    }
+    return new ShardPlan(shards, expectedBytes, expectedRequests);
+  }
+
+  // Total weight of the listed pages that are not in the excluded bitset.
+  private static double weight(final int[] pages, final long[] excluded, final double[] pageWeights) {
+    double weight = 0;
+    for (final int p: pages) {
+      if (excluded == null || (excluded[p >> 6] & (1L << p)) == 0) weight += pageWeights[p];
+    }
+    return weight;
+  }
+
+}
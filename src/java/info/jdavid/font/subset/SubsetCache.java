@@ -0,0 +1,152 @@
+package info.jdavid.font.subset;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Bounded in-memory cache of encoded subsets, shared by any number of extractors and threads.
+ * Entries are keyed by font digest, codepoint set, format and options, and the least recently
+ * used entries are evicted once the total size goes over the limit.
+ */
+public final class SubsetCache {
+
+  // Rough per entry cost of the key, the map entry and the array headers.
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private final long maxSize;
+  private final LinkedHashMap<Key, byte[]> map = new LinkedHashMap<>(256, 0.75f, true);
+  private long size = 0;
+  private long hitCount = 0;
+  private long missCount = 0;
+  private long evictionCount = 0;
+
+  public SubsetCache(final long maxSize) {
+    if (maxSize <= 0) throw new IllegalArgumentException();
+    this.maxSize = maxSize;
+  }
+
+  synchronized byte[] get(final Key key) {
+    final byte[] bytes = map.get(key);
+    if (bytes == null) ++missCount; else ++hitCount;
+    return bytes;
+  }
+
+  synchronized void put(final Key key, final byte[] bytes) {
+    final long weight = weight(key, bytes);
+    if (weight > maxSize) return;
+    final byte[] previous = map.put(key, bytes);
+    if (previous != null) size -= weight(key, previous);
+    size += weight;
+    final Iterator<Map.Entry<Key, byte[]>> iterator = map.entrySet().iterator();
+    while (size > maxSize && iterator.hasNext()) {
+      final Map.Entry<Key, byte[]> eldest = iterator.next();
+      size -= weight(eldest.getKey(), eldest.getValue());
+      iterator.remove();
+      ++evictionCount;
+    }
+  }
+
+  /**
+   * Removes every entry and resets the hit, miss and eviction counts.
+   */
+  public synchronized void clear() {
+    map.clear();
+    size = 0;
+    hitCount = 0;
+    missCount = 0;
+    evictionCount = 0;
+  }
+
+  public long maxSize() {
+    return maxSize;
+  }
+
+  public synchronized long size() {
+    return size;
+  }
+
+  public synchronized int entryCount() {
+    return map.size();
+  }
+
+  public synchronized long hitCount() {
+    return hitCount;
+  }
+
+  public synchronized long missCount() {
+    return missCount;
+  }
+
+  public synchronized long evictionCount() {
+    return evictionCount;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "SubsetCache{size=" + size + "/" + maxSize + ", entries=" + map.size() +
+           ", hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount + "}";
+  }
+
+  private static long weight(final Key key, final byte[] bytes) {
+    return ENTRY_OVERHEAD + bytes.length + (key.codepoints == null ? 0 : 8L * key.codepoints.rangeCount());
+  }
+
+  static byte[] digest(final byte[] bytes) {
+    return digest(ByteBuffer.wrap(bytes));
+  }
+
+  static byte[] digest(final ByteBuffer buffer) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(buffer);
+      return digest.digest();
+    }
+    catch (final NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  static final class Key {
+    private final byte[] digest;
+    private final CodepointSet codepoints;
+    private final Format format;
+    private final String options;
+    private final int hash;
+
+    // A null codepoint set stands for the whole font.
+    Key(final byte[] digest, final CodepointSet codepoints, final Format format, final String options) {
+      this.digest = digest;
+      this.codepoints = codepoints;
+      this.format = format;
+      this.options = options;
+      int h = Arrays.hashCode(digest);
+      h = 31 * h + (codepoints == null ? 0 : codepoints.hashCode());
+      h = 31 * h + format.ordinal();
+      h = 31 * h + options.hashCode();
+      this.hash = h;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      final Key key = (Key)o;
+      return hash == key.hash && format == key.format && options.equals(key.options) &&
+             (codepoints == null ? key.codepoints == null : codepoints.equals(key.codepoints)) &&
+             Arrays.equals(digest, key.digest);
+    }
+
+  }
+
+}
@@ -4,338 +4,362 @@ package info.jdavid.font.subset;
 // https://chromium.googlesource.com/external/font-compression-reference/+/
 // 5ce8fad3ab9824f9f4d5fb4768c313b6309e94e3/src/com/google/typography/font/compression/Woff2Writer.java
 
-import java.io.ByteArrayOutputStream;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeSet;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import com.google.typography.font.sfntly.Font;
 import com.google.typography.font.sfntly.Tag;
 import com.google.typography.font.sfntly.data.WritableFontData;
 import com.google.typography.font.sfntly.table.Table;
 import com.google.typography.font.sfntly.table.core.FontHeaderTable;
-import org.meteogroup.jbrotli.Brotli;
-import org.meteogroup.jbrotli.BrotliStreamCompressor;
-import org.meteogroup.jbrotli.libloader.BrotliLibraryLoader;
+import com.google.typography.font.sfntly.table.core.HorizontalHeaderTable;
+import com.google.typography.font.sfntly.table.truetype.LocaTable;
 
 
 public class Woff2Writer {
 
-  private static final long SIGNATURE = 0x774f4632;
+  private static final int SIGNATURE = 0x774f4632;
   private static final int WOFF2_HEADER_SIZE = 48;
-  private static final int FLAG_CONTINUE_STREAM = 1 << 4;
-  private static final int FLAG_APPLY_TRANSFORM = 1 << 5;
-
-  private static final Map<Integer, Integer> TRANSFORM_MAP = createTransformMap();
-  private static Map<Integer, Integer> createTransformMap() {
-    final Map<Integer, Integer> map = new HashMap<>(2);
-    map.put(Tag.glyf, Tag.intValue(new byte[]{ 'g', 'l', 'z', '1' }));
-    map.put(Tag.loca, Tag.intValue(new byte[]{ 'l', 'o', 'c', 'z' }));
-    return map;
-  }
-
-  private static final Map<Integer, Integer> KNOWN_TABLES = createKnownTables();
-  private static Map<Integer, Integer> createKnownTables() {
-    final Map<Integer, Integer> map = new HashMap<>(30);
-    map.put(Tag.intValue(new byte[] {'c', 'm', 'a', 'p' }), 0);
-    map.put(Tag.intValue(new byte[]{ 'h', 'e', 'a', 'd' }), 1);
-    map.put(Tag.intValue(new byte[]{ 'h', 'h', 'e', 'a' }), 2);
-    map.put(Tag.intValue(new byte[]{ 'h', 'm', 't', 'x' }), 3);
-    map.put(Tag.intValue(new byte[]{ 'm', 'a', 'x', 'p' }), 4);
-    map.put(Tag.intValue(new byte[]{ 'n', 'a', 'm', 'e' }), 5);
-    map.put(Tag.intValue(new byte[]{ 'O', 'S', '/', '2' }), 6);
-    map.put(Tag.intValue(new byte[]{ 'p', 'o', 's', 't' }), 7);
-    map.put(Tag.intValue(new byte[]{ 'c', 'v', 't', ' ' }), 8);
-    map.put(Tag.intValue(new byte[]{ 'f', 'p', 'g', 'm' }), 9);
-    map.put(Tag.intValue(new byte[]{ 'g', 'l', 'y', 'f' }), 10);
-    map.put(Tag.intValue(new byte[]{ 'l', 'o', 'c', 'a' }), 11);
-    map.put(Tag.intValue(new byte[]{ 'p', 'r', 'e', 'p' }), 12);
-    map.put(Tag.intValue(new byte[]{ 'C', 'F', 'F', ' ' }), 13);
-    map.put(Tag.intValue(new byte[]{ 'V', 'O', 'R', 'G' }), 14);
-    map.put(Tag.intValue(new byte[]{ 'E', 'B', 'D', 'T' }), 15);
-    map.put(Tag.intValue(new byte[]{ 'E', 'B', 'L', 'C' }), 16);
-    map.put(Tag.intValue(new byte[]{ 'g', 'a', 's', 'p' }), 17);
-    map.put(Tag.intValue(new byte[]{ 'h', 'd', 'm', 'x' }), 18);
-    map.put(Tag.intValue(new byte[]{ 'k', 'e', 'r', 'n' }), 19);
-    map.put(Tag.intValue(new byte[]{ 'L', 'T', 'S', 'H' }), 20);
-    map.put(Tag.intValue(new byte[]{ 'P', 'C', 'L', 'T' }), 21);
-    map.put(Tag.intValue(new byte[]{ 'V', 'D', 'M', 'X' }), 22);
-    map.put(Tag.intValue(new byte[]{ 'v', 'h', 'e', 'a' }), 23);
-    map.put(Tag.intValue(new byte[]{ 'v', 'm', 't', 'x' }), 24);
-    map.put(Tag.intValue(new byte[]{ 'B', 'A', 'S', 'E' }), 25);
-    map.put(Tag.intValue(new byte[]{ 'G', 'D', 'E', 'F' }), 26);
-    map.put(Tag.intValue(new byte[]{ 'G', 'P', 'O', 'S' }), 27);
-    map.put(Tag.intValue(new byte[]{ 'G', 'S', 'U', 'B' }), 28);
-    return map;
-  }
 
-  public Woff2Writer() {}
-
-  public WritableFontData convert(final Font font) {
-    final List<TableDirectoryEntry> entries = createTableDirectoryEntries(font);
-    final int size = computeCompressedFontSize(entries);
-    final WritableFontData writableFontData = WritableFontData.createWritableFontData(size);
-    int index = 0;
-    final FontHeaderTable head = font.getTable(Tag.head);
-    index += writeWoff2Header(writableFontData, entries, font.sfntVersion(), size, head.fontRevision());
-    index += writeDirectory(writableFontData, index, entries);
-    /*index +=*/ writeTables(writableFontData, index, entries);
-    return writableFontData;
-  }
+  // Transform versions of the table directory flags.
+  private static final int NULL_TRANSFORM = 0;
+  private static final int GLYF_TRANSFORM = 0;
+  private static final int GLYF_NULL_TRANSFORM = 3;
+  private static final int HMTX_TRANSFORM = 1;
+  private static final int UNKNOWN_TABLE = 0x3f;
 
-  private List<TableDirectoryEntry> createTableDirectoryEntries(final Font font) {
-    final List<TableDirectoryEntry> entries = new ArrayList<>();
-    final TreeSet<Integer> tags = new TreeSet<>(font.tableMap().keySet());
-    for (int tag: tags) {
-      final Table table = font.getTable(tag);
-      final byte[] uncompressedBytes = bytesFromTable(table);
-      if (TRANSFORM_MAP.containsValue(tag)) {
-        // Don't store the intermediate transformed tables under the nonstandard tags.
-        continue;
-      }
-      final byte[] transformedBytes;
-      if (TRANSFORM_MAP.containsKey(tag)) {
-        int transformedTag = TRANSFORM_MAP.get(tag);
-        Table transformedTable = font.getTable(transformedTag);
-        if (transformedTable != null) {
-          transformedBytes = bytesFromTable(transformedTable);
-        }
-        else {
-          transformedBytes = null;
-        }
-      }
-      else {
-        transformedBytes = null;
-      }
-      if (transformedBytes == null) {
-        entries.add(new TableDirectoryEntry(tag, uncompressedBytes));
-      }
-      else {
-        entries.add(new TableDirectoryEntry(tag, uncompressedBytes, transformedBytes, FLAG_APPLY_TRANSFORM));
-      }
+  // The known tables, in the order of their index in the table directory flags.
+  private static final int[] KNOWN_TABLES = {
+    tag("cmap"), tag("head"), tag("hhea"), tag("hmtx"), tag("maxp"), tag("name"), tag("OS/2"),
+    tag("post"), tag("cvt "), tag("fpgm"), tag("glyf"), tag("loca"), tag("prep"), tag("CFF "),
+    tag("VORG"), tag("EBDT"), tag("EBLC"), tag("gasp"), tag("hdmx"), tag("kern"), tag("LTSH"),
+    tag("PCLT"), tag("VDMX"), tag("vhea"), tag("vmtx"), tag("BASE"), tag("GDEF"), tag("GPOS"),
+    tag("GSUB"), tag("EBSC"), tag("JSTF"), tag("MATH"), tag("CBDT"), tag("CBLC"), tag("COLR"),
+    tag("CPAL"), tag("SVG "), tag("sbix"), tag("acnt"), tag("avar"), tag("bdat"), tag("bloc"),
+    tag("bsln"), tag("cvar"), tag("fdsc"), tag("feat"), tag("fmtx"), tag("fvar"), tag("gvar"),
+    tag("hsty"), tag("just"), tag("lcar"), tag("mort"), tag("morx"), tag("opbd"), tag("prop"),
+    tag("trak"), tag("Zapf"), tag("Silf"), tag("Glat"), tag("Gloc"), tag("Feat"), tag("Sill")
+  };
+  // Sorted copy of the known tables, and the index of each one, for binary searches.
+  private static final int[] SORTED_TABLES = KNOWN_TABLES.clone();
+  private static final int[] SORTED_INDEXES = new int[KNOWN_TABLES.length];
+  static {
+    Arrays.sort(SORTED_TABLES);
+    for (int i=0; i<KNOWN_TABLES.length; ++i) {
+      SORTED_INDEXES[Arrays.binarySearch(SORTED_TABLES, KNOWN_TABLES[i])] = i;
     }
-    return entries;
   }
 
-  private byte[] bytesFromTable(final Table table) {
-    final int length = table.dataLength();
-    final byte[] bytes = new byte[length];
-    table.readFontData().readBytes(0, bytes, 0, length);
-    return bytes;
+  private static int tag(final String name) {
+    return (name.charAt(0) << 24) | (name.charAt(1) << 16) | (name.charAt(2) << 8) | name.charAt(3);
   }
 
-  private int writeWoff2Header(final WritableFontData writableFontData,
-                               final List<TableDirectoryEntry> entries,
-                               final int flavor, final int length, final int version) {
-    int index = 0;
-    index += writableFontData.writeULong(index, SIGNATURE);
-    index += writableFontData.writeULong(index, flavor);
-    index += writableFontData.writeULong(index, length);
-    index += writableFontData.writeUShort(index, entries.size());  // numTables
-    index += writableFontData.writeUShort(index, 0);  // reserved
-    int uncompressedFontSize = computeUncompressedSize(entries);
-    index += writableFontData.writeULong(index, uncompressedFontSize);
-    int compressedFontSize = computeCompressedFontSize(entries);
-    index += writableFontData.writeULong(index, compressedFontSize);
-    index += writableFontData.writeFixed(index, version);
-    index += writableFontData.writeULong(index, 0);  // metaOffset
-    index += writableFontData.writeULong(index, 0);  // metaLength
-    index += writableFontData.writeULong(index, 0);  // metaOrigLength
-    index += writableFontData.writeULong(index, 0);  // privOffset
-    index += writableFontData.writeULong(index, 0);  // privLength
-    return index;
+  private static int knownTableIndex(final int tag) {
+    final int i = Arrays.binarySearch(SORTED_TABLES, tag);
+    return i < 0 ? UNKNOWN_TABLE : SORTED_INDEXES[i];
   }
 
-  private int writeDirectory(final WritableFontData writableFontData, final int offset,
-                             final List<TableDirectoryEntry> entries) {
-    final int directorySize = computeDirectoryLength(entries);
-    int index = offset;
-    for (final TableDirectoryEntry entry: entries) {
-      index += entry.writeEntry(writableFontData, index);
-    }
-    return directorySize;
-  }
+  // Scratch buffers shared by all the writers. At most MAX_POOLED_BUFFERS sets are kept, whatever
+  // the number of threads, and a set is trimmed to MAX_POOLED_SIZE bytes before it goes back to the
+  // pool, so the pool holds at most MAX_POOLED_BUFFERS * MAX_POOLED_SIZE bytes.
+  private static final int MAX_POOLED_SIZE = 8 * 1024 * 1024;
+  private static final int MAX_POOLED_BUFFERS = 4;
+  private static final BlockingQueue<Buffers> POOL = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
 
-  private int writeTables(final WritableFontData writableFontData, final int offset,
-                          final List<TableDirectoryEntry> entries) {
-    int index = offset;
-    for (final TableDirectoryEntry entry: entries) {
-      index += entry.writeData(writableFontData, index);
-      index = align4(index);
-    }
-    return index - offset;
-  }
+  private final Options options;
 
-  private int computeDirectoryLength(final List<TableDirectoryEntry> entries) {
-    int index = 0;
-    for (final TableDirectoryEntry entry: entries) {
-      index += entry.writeEntry(null, index);
-    }
-    return index;
+  public Woff2Writer() {
+    this(Options.DEFAULT);
   }
 
-  private int align4(final int value) {
-    return (value + 3) & -4;
+  /**
+   * Uses the brotli quality, window size and mode of the options, and their brotli codec if they
+   * have one. Otherwise, the native brotli library is used when it is available for the platform,
+   * and the pure java encoder when it is not (it ignores the mode).
+   */
+  public Woff2Writer(final Options options) {
+    this.options = options;
   }
 
-  private int computeUncompressedSize(final List<TableDirectoryEntry> entries) {
-    int index = 20 + 16 * entries.size();  // sfnt header length
-    for (final TableDirectoryEntry entry: entries) {
-      index += entry.origLength;
-      index = align4(index);
-    }
-    return index;
+  public WritableFontData convert(final Font font) {
+    return WritableFontData.createWritableFontData(write(font));
   }
 
-  private int computeCompressedFontSize(final List<TableDirectoryEntry> entries) {
-    int index = WOFF2_HEADER_SIZE;
-    index += computeDirectoryLength(entries);
-    for (final TableDirectoryEntry entry: entries) {
-      index += entry.bytes.length;
-      index = align4(index);
+  // The woff2 file, in an array of the exact size.
+  public byte[] write(final Font font) {
+    final Buffers buffers = Buffers.acquire();
+    try {
+      final byte[] output = write(font, buffers);
+      return Arrays.copyOf(output, length(output));
+    }
+    finally {
+      buffers.release();
     }
-    return index;
   }
 
-  // Note: if writableFontData is null, just return the size
-  private static byte[] base128(final long value) {
-    final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
-    int size = 1;
-    long tmpValue = value;
-    while (tmpValue >= 128) {
-      size += 1;
-      tmpValue = tmpValue >> 7;
+  /**
+   * Writes the woff2 file at the given offset of the output, and returns its length. Nothing is
+   * written when the file doesn't fit: the returned length is then larger than the room left in the
+   * output, and the call can be repeated with a large enough buffer.
+   */
+  public int write(final Font font, final byte[] output, final int offset) {
+    final Buffers buffers = Buffers.acquire();
+    try {
+      final byte[] woff2 = write(font, buffers);
+      final int length = length(woff2);
+      if (length <= output.length - offset) System.arraycopy(woff2, 0, output, offset, length);
+      return length;
     }
-    for (int i=0; i<size; i++) {
-      int b = (int)(value >> (7 * (size - i - 1))) & 0x7f;
-      if (i < size - 1) {
-        b |= 0x80;
-      }
-      out.write((byte)b);
+    finally {
+      buffers.release();
     }
-    return out.toByteArray();
   }
 
-  // Note: if writableFontData is null, just return the size
-  private static int writeBase128(final WritableFontData writableFontData,
-                                  final long value, final int offset) {
-    int size = 1;
-    long tmpValue = value;
-    int index = offset;
-    while (tmpValue >= 128) {
-      size += 1;
-      tmpValue = tmpValue >> 7;
+  public void write(final Font font, final OutputStream out) throws IOException {
+    final Buffers buffers = Buffers.acquire();
+    try {
+      final byte[] output = write(font, buffers);
+      out.write(output, 0, length(output));
     }
-    for (int i=0; i<size; i++) {
-      int b = (int)(value >> (7 * (size - i - 1))) & 0x7f;
-      if (i < size - 1) {
-        b |= 0x80;
-      }
-      if (writableFontData != null) {
-        writableFontData.writeByte(index, (byte)b);
-      }
-      index += 1;
+    finally {
+      buffers.release();
     }
-    return size;
   }
 
-  private class TableDirectoryEntry {
-    private final long tag;
-    private final long flags;
-    public final long origLength;
-    private final long transformLength;
-    public final byte[] bytes;
+  // The length field of the header.
+  private static int length(final byte[] output) {
+    return ((output[8] & 0xff) << 24) | ((output[9] & 0xff) << 16) | ((output[10] & 0xff) << 8) | (output[11] & 0xff);
+  }
 
-    public TableDirectoryEntry(final long tag, final byte[] uncompressedBytes) {
-      this(tag, uncompressedBytes, uncompressedBytes, 0);
+  // Writes the woff2 file at the start of a buffer that may be larger, and returns that buffer.
+  // All the table data is read once into a single buffer, and the data of all the tables as it
+  // should be compressed is concatenated into a second one, in the order of the table directory.
+  // The glyf table is replaced by its transformed version, and the loca table is dropped. The hmtx
+  // table is transformed as well when some of the left side bearings can be dropped. The transforms
+  // are written directly at their place in the second buffer.
+  // Every size is known before anything is written, and the brotli stream is compressed directly
+  // at its place in the output.
+  private byte[] write(final Font font, final Buffers buffers) {
+    final int[] tags = orderedTags(font);
+    final int numTables = tags.length;
+    final int[] offsets = new int[numTables + 1];
+    int glyfIndex = -1;
+    int locaIndex = -1;
+    int hmtxIndex = -1;
+    for (int i=0; i<numTables; ++i) {
+      offsets[i + 1] = offsets[i] + font.getTable(tags[i]).dataLength();
+      if (tags[i] == Tag.glyf) glyfIndex = i;
+      else if (tags[i] == Tag.loca) locaIndex = i;
+      else if (tags[i] == Tag.hmtx) hmtxIndex = i;
+    }
+    final byte[] tables = buffers.get(Buffers.TABLES, offsets[numTables]);
+    for (int i=0; i<numTables; ++i) {
+      final Table table = font.getTable(tags[i]);
+      table.readFontData().readBytes(0, tables, offsets[i], offsets[i + 1] - offsets[i]);
     }
 
-    public TableDirectoryEntry(final long tag, final byte[] uncompressedBytes,
-                        final byte[] transformedBytes, final long transformFlags) {
-      final byte[] compressedBytes = compress(transformedBytes);
-      this.tag = tag;
-      this.flags = transformFlags | 2L;
-      this.origLength = uncompressedBytes.length;
-      this.transformLength = transformedBytes.length;
-      this.bytes = compressedBytes;
+    final boolean transformGlyf = glyfIndex >= 0 && locaIndex >= 0;
+    final LocaTable loca = transformGlyf ? font.getTable(Tag.loca) : null;
+    final int numGlyphs = transformGlyf ? loca.numGlyphs() : 0;
+    final int[] glyphOffsets = transformGlyf ? glyphOffsets(loca, buffers.offsets(numGlyphs + 1)) : null;
+    final int glyfOffset = transformGlyf ? offsets[glyfIndex] : 0;
+    final int indexFormat = transformGlyf ? font.<FontHeaderTable>getTable(Tag.head).indexToLocFormat() : 0;
+    final HorizontalHeaderTable hhea = transformGlyf ? font.getTable(Tag.hhea) : null;
+    final int hmtxOffset = hmtxIndex >= 0 && hhea != null ? offsets[hmtxIndex] : -1;
+    final int numberOfHMetrics = hhea == null ? 0 : hhea.numberOfHMetrics();
+    // Both transforms only read the original tables, so they can run in parallel. They give the
+    // length of the transformed glyf table and the flags of the hmtx transform.
+    final GlyfTransform glyf = buffers.glyf;
+    final int[] results = new int[2];
+    if (transformGlyf) {
+      Parallel.run(new Runnable[] {
+        () -> results[0] = glyf.transform(tables, glyfOffset, glyphOffsets, numGlyphs, indexFormat),
+        () -> results[1] = hmtxOffset < 0 ? 0 :
+          HmtxTransform.flags(tables, hmtxOffset, numberOfHMetrics, tables, glyfOffset, glyphOffsets, numGlyphs)
+      }, options.executor());
     }
+    final int glyfLength = results[0];
+    final int hmtxFlags = results[1];
 
-    public int writeEntry(final WritableFontData writableFontData, final int offset) {
-      int index = offset;
-      int flag_byte = 0x3f;
-      if (KNOWN_TABLES.containsKey((int)tag)) {
-        flag_byte = KNOWN_TABLES.get((int)tag);
+    final int[] flags = new int[numTables];
+    final boolean[] transformed = new boolean[numTables];
+    final int[] transformLengths = new int[numTables];
+    int dataSize = 0;
+    int directorySize = 0;
+    int sfntSize = 12 + 16 * numTables;
+    for (int i=0; i<numTables; ++i) {
+      final int length = offsets[i + 1] - offsets[i];
+      final int version;
+      if (i == glyfIndex || i == locaIndex) {
+        version = transformGlyf ? GLYF_TRANSFORM : GLYF_NULL_TRANSFORM;
+        transformed[i] = transformGlyf;
+        transformLengths[i] = !transformGlyf ? length : i == glyfIndex ? glyfLength : 0;
       }
-      if ((flags & FLAG_APPLY_TRANSFORM) != 0) {
-        flag_byte |= 0x20;
+      else if (i == hmtxIndex && hmtxFlags != 0) {
+        version = HMTX_TRANSFORM;
+        transformed[i] = true;
+        transformLengths[i] = HmtxTransform.length(hmtxFlags, numberOfHMetrics, numGlyphs);
       }
-      if ((flags & FLAG_CONTINUE_STREAM) != 0) {
-        flag_byte |= 0xc0;
+      else {
+        version = NULL_TRANSFORM;
+        transformLengths[i] = length;
       }
-//      else {
-//        flag_byte |= (flags & 3) << 6;
-//      }
-      if (writableFontData != null) {
-//          System.out.printf("%d: tag = %08x, flag = %02x\n", offset, tag, flag_byte);
-        writableFontData.writeByte(index, (byte)flag_byte);
+      flags[i] = knownTableIndex(tags[i]) | (version << 6);
+      directorySize += 1 + ((flags[i] & UNKNOWN_TABLE) == UNKNOWN_TABLE ? 4 : 0) + base128Size(length) +
+                       (transformed[i] ? base128Size(transformLengths[i]) : 0);
+      dataSize += transformLengths[i];
+      sfntSize += align4(length);
+    }
+
+    // The tables follow each other without padding.
+    final byte[] data = buffers.get(Buffers.DATA, dataSize);
+    int dataOffset = 0;
+    for (int i=0; i<numTables; ++i) {
+      if (!transformed[i]) System.arraycopy(tables, offsets[i], data, dataOffset, transformLengths[i]);
+      else if (i == glyfIndex) glyf.writeTo(data, dataOffset);
+      else if (i == hmtxIndex) {
+        HmtxTransform.write(hmtxFlags, tables, hmtxOffset, numberOfHMetrics, numGlyphs, data, dataOffset);
       }
-      index += 1;
-      if ((flag_byte & 0x1f) == 0x1f) {
-        if (writableFontData != null) {
-          writableFontData.writeULong(index, tag);
-        }
+      dataOffset += transformLengths[i];
+    }
+
+    final Codec codec = Codecs.forFormat(Codecs.BROTLI, options);
+    final int streamOffset = WOFF2_HEADER_SIZE + directorySize;
+    final byte[] output = buffers.get(Buffers.OUTPUT, align4(streamOffset + codec.maxCompressedLength(dataSize)));
+    final int compressedLength =
+      codec.compress(data, 0, dataSize, output, streamOffset, options.parameters(Format.WOFF2));
+    final int length = align4(streamOffset + compressedLength);
+    Arrays.fill(output, streamOffset + compressedLength, length, (byte)0);
+
+    final FontHeaderTable head = font.getTable(Tag.head);
+    putInt(output, 0, SIGNATURE);
+    putInt(output, 4, font.sfntVersion());
+    putInt(output, 8, length);
+    putShort(output, 12, numTables);
+    putShort(output, 14, 0);  // reserved
+    putInt(output, 16, sfntSize);
+    putInt(output, 20, compressedLength);
+    putInt(output, 24, head.fontRevision());
+    Arrays.fill(output, 28, WOFF2_HEADER_SIZE, (byte)0);  // no metadata or private data
+    int index = WOFF2_HEADER_SIZE;
+    for (int i=0; i<numTables; ++i) {
+      output[index++] = (byte)flags[i];
+      if ((flags[i] & UNKNOWN_TABLE) == UNKNOWN_TABLE) {
+        putInt(output, index, tags[i]);
         index += 4;
       }
-      index += writeBase128(writableFontData, origLength, index);
-      if ((flag_byte & 0x20) != 0) {
-        index += writeBase128(writableFontData, transformLength, index);
+      index = writeBase128(output, index, offsets[i + 1] - offsets[i]);
+      if (transformed[i]) {
+        index = writeBase128(output, index, transformLengths[i]);
       }
-      if ((flag_byte & 0xc0) == 0x40 || (flag_byte & 0xc0) == 0x80) {
-        index += writeBase128(writableFontData, bytes.length, index);
-      }
-      return index - offset;
     }
+    return output;
+  }
 
-    public int writeData(final WritableFontData writableFontData, final int offset) {
-      writableFontData.writeBytes(offset, bytes);
-      return bytes.length;
+  // Tags in increasing order, except for loca that has to come right after glyf.
+  private static int[] orderedTags(final Font font) {
+    final int[] tags = new int[font.numTables()];
+    int count = 0;
+    for (final int tag: font.tableMap().keySet()) tags[count++] = tag;
+    Arrays.sort(tags, 0, count);
+    final int glyf = Arrays.binarySearch(tags, 0, count, Tag.glyf);
+    final int loca = Arrays.binarySearch(tags, 0, count, Tag.loca);
+    if (glyf >= 0 && loca > glyf + 1) {
+      System.arraycopy(tags, glyf + 1, tags, glyf + 2, loca - glyf - 1);
+      tags[glyf + 1] = Tag.loca;
     }
+    return count == tags.length ? tags : Arrays.copyOf(tags, count);
+  }
 
+  // The numGlyphs + 1 glyph offsets of the loca table, at the start of the given array.
+  private static int[] glyphOffsets(final LocaTable loca, final int[] offsets) {
+    final int numGlyphs = loca.numGlyphs();
+    for (int i=0; i<=numGlyphs; ++i) offsets[i] = loca.loca(i);
+    return offsets;
   }
 
-//  private static byte[] compress(final byte[] input) {
-//    try {
-//      final ByteArrayInputStream in = new ByteArrayInputStream(input);
-//      final ByteArrayOutputStream out = new ByteArrayOutputStream();
-//      final Encoder encoder = new Encoder();
-//      encoder.SetAlgorithm(2);
-//      encoder.SetDictionarySize(1 << 23);
-//      encoder.SetNumFastBytes(128);
-//      encoder.SetMatchFinder(1);
-//      encoder.SetLcLpPb(3, 0, 2);
-//      encoder.SetEndMarkerMode(true);
-//      encoder.WriteCoderProperties(out);
-//      for (int i=0; i<8; i++) {
-//        out.write((int) ((long) -1 >>> (8 * i)) & 0xFF);
-//      }
-//      encoder.Code(in, out, -1, -1, null);
-//      out.flush();
-//      out.close();
-//      return out.toByteArray();
-//    }
-//    catch (final IOException e) {
-//      throw new RuntimeException(e);
-//    }
-//  }
-
-  private static byte[] compress(final byte[] input) {
-    return new BrotliStreamCompressor(Brotli.DEFAULT_PARAMETER).compressArray(input, true);
+  private static int align4(final int value) {
+    return (value + 3) & -4;
   }
 
-  static {
-    BrotliLibraryLoader.loadBrotli();
+  private static int base128Size(final int value) {
+    int size = 1;
+    for (int v=value>>>7; v!=0; v>>>=7) ++size;
+    return size;
+  }
+
+  // The UIntBase128 encoding, returns the offset after the value.
+  private static int writeBase128(final byte[] bytes, final int offset, final int value) {
+    final int size = base128Size(value);
+    for (int i=0; i<size; ++i) {
+      final int b = (value >>> (7 * (size - i - 1))) & 0x7f;
+      bytes[offset + i] = (byte)(i < size - 1 ? b | 0x80 : b);
+    }
+    return offset + size;
+  }
+
+  private static void putShort(final byte[] bytes, final int offset, final int value) {
+    bytes[offset] = (byte)(value >>> 8);
+    bytes[offset + 1] = (byte)value;
+  }
+
+  private static void putInt(final byte[] bytes, final int offset, final int value) {
+    bytes[offset] = (byte)(value >>> 24);
+    bytes[offset + 1] = (byte)(value >>> 16);
+    bytes[offset + 2] = (byte)(value >>> 8);
+    bytes[offset + 3] = (byte)value;
+  }
+
+  private static final class Buffers {
+    static final int TABLES = 0;
+    static final int DATA = 1;
+    static final int OUTPUT = 2;
+
+    private final byte[][] buffers = { new byte[0], new byte[0], new byte[0] };
+    private int[] offsets = new int[0];
+    private GlyfTransform glyf = new GlyfTransform();
+
+    static Buffers acquire() {
+      final Buffers buffers = POOL.poll();
+      return buffers == null ? new Buffers() : buffers;
+    }
+
+    // The largest buffers are dropped until the set is under MAX_POOLED_SIZE. The set itself is
+    // dropped when the pool is full.
+    void release() {
+      while (capacity() > MAX_POOLED_SIZE) {
+        int largest = 0;
+        for (int i=1; i<buffers.length; ++i) {
+          if (buffers[i].length > buffers[largest].length) largest = i;
+        }
+        if (glyf.capacity() > buffers[largest].length) glyf = new GlyfTransform();
+        else if (4 * offsets.length > buffers[largest].length) offsets = new int[0];
+        else buffers[largest] = new byte[0];
+      }
+      POOL.offer(this);
+    }
+
+    private int capacity() {
+      int capacity = glyf.capacity() + 4 * offsets.length;
+      for (final byte[] buffer: buffers) capacity += buffer.length;
+      return capacity;
+    }
+
+    // The contents of the buffer are not cleared.
+    byte[] get(final int which, final int size) {
+      final byte[] buffer = buffers[which];
+      if (buffer.length >= size) return buffer;
+      return buffers[which] = new byte[size];
+    }
+
+    // Array for the glyph offsets, which may be longer than the given size.
+    int[] offsets(final int size) {
+      if (offsets.length < size) offsets = new int[size];
+      return offsets;
+    }
   }
 
 }
@@ -0,0 +1,138 @@
+package info.jdavid.font.subset;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.google.typography.font.sfntly.Font;
+import com.google.typography.font.sfntly.Tag;
+import com.google.typography.font.sfntly.data.WritableFontData;
+import com.google.typography.font.sfntly.table.Table;
+import com.google.typography.font.sfntly.table.core.FontHeaderTable;
+
+
+/**
+ * Woff 1.0 writer. Each table is compressed separately with the zlib {@link Codec} of the options,
+ * and stored as is when that doesn't make it smaller. With an executor in the options, the tables are
+ * compressed in parallel, and the output is the same as without it.
+ */
+public class WoffWriter {
+
+  private static final int SIGNATURE = 0x774f4646;
+  private static final int WOFF_HEADER_SIZE = 44;
+  private static final int TABLE_DIRECTORY_ENTRY_SIZE = 20;
+  private static final int HEAD_CHECKSUM_ADJUSTMENT = 8;
+
+  private final Options options;
+
+  public WoffWriter() {
+    this(Options.DEFAULT);
+  }
+
+  public WoffWriter(final Options options) {
+    this.options = options;
+  }
+
+  public WritableFontData convert(final Font font) {
+    return WritableFontData.createWritableFontData(write(font));
+  }
+
+  public void write(final Font font, final OutputStream out) throws IOException {
+    out.write(write(font));
+  }
+
+  public byte[] write(final Font font) {
+    final int numTables = font.numTables();
+    final int[] tags = new int[numTables];
+    int n = 0;
+    for (final int tag: font.tableMap().keySet()) tags[n++] = tag;
+    // Tags start with a printable character, so their signed order is also their unsigned order.
+    Arrays.sort(tags);
+
+    final byte[][] tables = new byte[numTables][];
+    for (int i=0; i<numTables; ++i) {
+      final Table table = font.getTable(tags[i]);
+      tables[i] = new byte[table.dataLength()];
+      table.readFontData().readBytes(0, tables[i], 0, tables[i].length);
+    }
+    final Codec codec = Codecs.forFormat(Codecs.ZLIB, options);
+    final byte[][] compressed = new byte[numTables][];
+    final int[] checksums = new int[numTables];
+    final Runnable[] tasks = new Runnable[numTables];
+    for (int i=0; i<numTables; ++i) {
+      final int index = i;
+      tasks[i] = () -> {
+        compressed[index] = compress(codec, tables[index]);
+        checksums[index] = checksum(tables[index], tags[index] == Tag.head);
+      };
+    }
+    Parallel.run(tasks, options.executor());
+
+    int length = WOFF_HEADER_SIZE + TABLE_DIRECTORY_ENTRY_SIZE * numTables;
+    int sfntSize = 12 + 16 * numTables;
+    for (int i=0; i<numTables; ++i) {
+      length += align4(compressed[i].length);
+      sfntSize += align4(tables[i].length);
+    }
+    final byte[] output = new byte[length];
+    final int revision = font.<FontHeaderTable>getTable(Tag.head).fontRevision();
+    putInt(output, 0, SIGNATURE);
+    putInt(output, 4, font.sfntVersion());
+    putInt(output, 8, length);
+    putShort(output, 12, numTables);
+    putInt(output, 16, sfntSize);
+    putShort(output, 20, revision >>> 16);
+    putShort(output, 22, revision);
+    // The reserved field, and the metadata and private data offsets and lengths, are all 0.
+    int entry = WOFF_HEADER_SIZE;
+    int offset = WOFF_HEADER_SIZE + TABLE_DIRECTORY_ENTRY_SIZE * numTables;
+    for (int i=0; i<numTables; ++i) {
+      putInt(output, entry, tags[i]);
+      putInt(output, entry + 4, offset);
+      putInt(output, entry + 8, compressed[i].length);
+      putInt(output, entry + 12, tables[i].length);
+      putInt(output, entry + 16, checksums[i]);
+      System.arraycopy(compressed[i], 0, output, offset, compressed[i].length);
+      entry += TABLE_DIRECTORY_ENTRY_SIZE;
+      offset += align4(compressed[i].length);
+    }
+    return output;
+  }
+
+  // The compressed table, or the table itself if compression doesn't make it smaller.
+  private byte[] compress(final Codec codec, final byte[] table) {
+    if (table.length == 0) return table;
+    final byte[] output = new byte[codec.maxCompressedLength(table.length)];
+    final int length = codec.compress(table, 0, table.length, output, 0, options.parameters(Format.WOFF));
+    return length < table.length ? Arrays.copyOf(output, length) : table;
+  }
+
+  // The sum of the table as uint32 values, with the checksum adjustment of the head table set to 0.
+  private static int checksum(final byte[] table, final boolean head) {
+    int sum = 0;
+    for (int i=0; i<table.length; i+=4) {
+      if (head && i == HEAD_CHECKSUM_ADJUSTMENT) continue;
+      int value = 0;
+      for (int j=0; j<4; ++j) value = (value << 8) | (i + j < table.length ? table[i + j] & 0xff : 0);
+      sum += value;
+    }
+    return sum;
+  }
+
+  private static int align4(final int value) {
+    return (value + 3) & -4;
+  }
+
+  private static void putShort(final byte[] bytes, final int offset, final int value) {
+    bytes[offset] = (byte)(value >>> 8);
+    bytes[offset + 1] = (byte)value;
+  }
+
+  private static void putInt(final byte[] bytes, final int offset, final int value) {
+    bytes[offset] = (byte)(value >>> 24);
+    bytes[offset + 1] = (byte)(value >>> 16);
+    bytes[offset + 2] = (byte)(value >>> 8);
+    bytes[offset + 3] = (byte)value;
+  }
+
+}
@@ -0,0 +1,109 @@
+package info.jdavid.font.subset;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+
+/**
+ * Prints the woff2 size and encoding time of sample fonts for a range of brotli settings, then
+ * the ratio and throughput of every available {@link Codec} on the ttf data, and the woff size with
+ * each zlib codec.
+ * Usage: ./gradlew benchmark [-Pfonts=a.ttf,b.ttf] (DryBrush.ttf by default).
+ */
+public final class CompressionBenchmark {
+
+  private static final int[] QUALITIES = { 0, 1, 3, 5, 7, 9, 10, 11 };
+  private static final int[] WINDOWS = { 18, 22, 24 };
+  private static final int WARMUP = 2;
+  private static final int RUNS = 5;
+
+  private CompressionBenchmark() {}
+
+  public static void main(final String[] args) throws IOException {
+    final String[] fonts = args.length == 0 ? new String[] { "DryBrush.ttf" } : args;
+    System.out.println(String.format("%-24s %-8s %7s %6s %-7s %9s %9s",
+                                     "font", "subset", "quality", "window", "mode", "bytes", "ms"));
+    for (final String font: fonts) {
+      final Path path = Paths.get(font);
+      final Extractor extractor = new Extractor(path);
+      final CodepointSet[] subsets = { CodepointSet.range(0x20, 0x7e), null };
+      for (final CodepointSet subset: subsets) {
+        for (final int window: WINDOWS) {
+          for (final int quality: QUALITIES) {
+            for (final boolean fontMode: new boolean[] { false, true }) {
+              final Options options =
+                Options.DEFAULT.brotliQuality(quality).brotliWindow(window).brotliFontMode(fontMode);
+              int size = 0;
+              final long[] times = new long[RUNS];
+              for (int i=0; i<WARMUP+RUNS; ++i) {
+                final long start = System.nanoTime();
+                size = extractor.woff2(subset, options).length;
+                if (i >= WARMUP) times[i - WARMUP] = System.nanoTime() - start;
+              }
+              Arrays.sort(times);
+              System.out.println(String.format("%-24s %-8s %7d %6d %-7s %9d %9.2f",
+                                               path.getFileName(), subset == null ? "all" : "latin",
+                                               quality, window, fontMode ? "font" : "generic",
+                                               size, times[RUNS / 2] / 1e6));
+            }
+          }
+        }
+      }
+    }
+    codecs(fonts);
+    woff(fonts);
+  }
+
+  // Throughput and ratio of every available codec, on the same input.
+  private static void codecs(final String[] fonts) throws IOException {
+    System.out.println();
+    System.out.println(String.format("%-24s %-14s %7s %9s %9s %7s %9s",
+                                     "font", "codec", "quality", "input", "bytes", "ratio", "MB/s"));
+    for (final String font: fonts) {
+      final Path path = Paths.get(font);
+      final byte[] input = new Extractor(path).ttf();
+      for (final Codec codec: Codecs.all()) {
+        // Too slow for a run per quality, see woff().
+        if (!codec.isAvailable() || codec instanceof Codecs.Zopfli) continue;
+        final byte[] output = new byte[codec.maxCompressedLength(input.length)];
+        for (final int quality: QUALITIES) {
+          final Codec.Parameters parameters =
+            new Codec.Parameters(quality, Options.DEFAULT_BROTLI_WINDOW, false, Codec.Parameters.DEFAULT.iterations());
+          int size = 0;
+          final long[] times = new long[RUNS];
+          for (int i=0; i<WARMUP+RUNS; ++i) {
+            final long start = System.nanoTime();
+            size = codec.compress(input, 0, input.length, output, 0, parameters);
+            if (i >= WARMUP) times[i - WARMUP] = System.nanoTime() - start;
+          }
+          Arrays.sort(times);
+          System.out.println(String.format("%-24s %-14s %7d %9d %9d %7.3f %9.2f",
+                                           path.getFileName(), codec.name(), quality,
+                                           input.length, size, size / (double)input.length,
+                                           input.length / (times[RUNS / 2] / 1e3)));
+        }
+      }
+    }
+  }
+
+  // Woff size and encoding time with each zlib codec, with the default options (a single run).
+  private static void woff(final String[] fonts) throws IOException {
+    System.out.println();
+    System.out.println(String.format("%-24s %-14s %9s %9s", "font", "codec", "bytes", "ms"));
+    for (final String font: fonts) {
+      final Path path = Paths.get(font);
+      final Extractor extractor = new Extractor(path);
+      for (final Codec codec: Codecs.all()) {
+        if (!codec.isAvailable() || !Codecs.ZLIB.equals(codec.format())) continue;
+        final long start = System.nanoTime();
+        final int size = extractor.woff((CodepointSet)null, Options.DEFAULT.codec(codec.name())).length;
+        System.out.println(String.format("%-24s %-14s %9d %9.2f",
+                                         path.getFileName(), codec.name(), size,
+                                         (System.nanoTime() - start) / 1e6));
+      }
+    }
+  }
+
+}
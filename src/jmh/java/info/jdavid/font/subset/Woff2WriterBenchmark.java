@@ -0,0 +1,93 @@
+package info.jdavid.font.subset;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import com.google.typography.font.sfntly.Font;
+import com.google.typography.font.sfntly.FontFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Time and allocation of the woff2 serializer alone, on an already subset font, with the gc
+ * profiler (gc.alloc.rate.norm is the number of bytes allocated per write):
+ * {@code ./gradlew jmh}.
+ * write() allocates the returned array, writeToStream() and writeToArray() should allocate close to
+ * nothing besides the codec's own working memory.
+ * Quality 0 keeps the brotli encoder from dominating the time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Woff2WriterBenchmark {
+
+  @Param({ "DryBrush.ttf" })
+  public String font;
+
+  @Param({ "latin", "all" })
+  public String subset;
+
+  @Param({ "0", "11" })
+  public int quality;
+
+  private Font input;
+  private Woff2Writer writer;
+  private byte[] output;
+
+  private static final OutputStream NULL = new OutputStream() {
+    @Override
+    public void write(final int b) {}
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {}
+  };
+
+  @Setup
+  public void setup() throws IOException {
+    final Extractor extractor = new Extractor(Files.readAllBytes(Paths.get(font)));
+    final byte[] ttf = "all".equals(subset) ? extractor.ttf() : extractor.ttf(CodepointSet.range(0x20, 0x7e));
+    input = FontFactory.getInstance().loadFonts(ttf)[0];
+    writer = new Woff2Writer(Options.DEFAULT.brotliQuality(quality));
+    output = new byte[writer.write(input).length];
+  }
+
+  @Benchmark
+  public byte[] write() {
+    return writer.write(input);
+  }
+
+  @Benchmark
+  public OutputStream writeToStream() throws IOException {
+    writer.write(input, NULL);
+    return NULL;
+  }
+
+  @Benchmark
+  public int writeToArray() {
+    return writer.write(input, output, 0);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public byte[] writeConcurrently() {
+    return writer.write(input);
+  }
+
+}
@@ -0,0 +1,111 @@
+package info.jdavid.font.subset;
+
+import org.brotli.dec.BrotliInputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+// Decodes the output of the pure java brotli encoder with the reference java decoder.
+public class BrotliEncoderTest {
+
+  private static final int[] QUALITIES = { 0, 1, 5, 9, 11 };
+  private static final int[] WINDOWS = { 10, 24 };
+
+  static byte[] decompress(final byte[] compressed, final int offset, final int length) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (final InputStream in = new BrotliInputStream(new ByteArrayInputStream(compressed, offset, length))) {
+      final byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] random(final int length) {
+    final byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] text() {
+    final StringBuilder builder = new StringBuilder();
+    final Random random = new Random(7);
+    final String[] words = { "glyph", "font", "subset", "woff2", "brotli", "table", "the", "a", "of", "\n" };
+    while (builder.length() < 200000) builder.append(words[random.nextInt(words.length)]).append(' ');
+    return builder.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  // Compresses through the codec, at an offset of both the input and the output, and decodes the result.
+  private static void check(final byte[] data, final int quality, final int window) throws IOException {
+    final Codec codec = new Codecs.JavaBrotli();
+    final byte[] input = new byte[data.length + 10];
+    Arrays.fill(input, (byte)0x55);
+    System.arraycopy(data, 0, input, 3, data.length);
+    final byte[] output = new byte[codec.maxCompressedLength(data.length) + 5];
+    final int length =
+      codec.compress(input, 3, data.length, output, 5, new Codec.Parameters(quality, window, false, 1));
+    assertTrue(length <= codec.maxCompressedLength(data.length));
+    assertArrayEquals("quality " + quality + ", window " + window, data, decompress(output, 5, length));
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    final byte[][] inputs = {
+      new byte[0], new byte[] { 42 }, "abcabcabcabcabcabcabc".getBytes(StandardCharsets.US_ASCII),
+      random(100000), text(), Files.readAllBytes(Paths.get("DryBrush.ttf"))
+    };
+    for (final byte[] input: inputs) {
+      for (final int quality: QUALITIES) {
+        for (final int window: WINDOWS) check(input, quality, window);
+      }
+    }
+  }
+
+  @Test
+  public void multipleMetaBlocks() throws IOException {
+    // Over 1MB, with repeats further apart than a meta-block.
+    final byte[] part = random(700000);
+    final byte[] input = new byte[3 * part.length];
+    for (int i=0; i<3; ++i) System.arraycopy(part, 0, input, i * part.length, part.length);
+    check(input, 5, 24);
+    check(input, 1, 10);
+  }
+
+  @Test
+  public void incompressible() throws IOException {
+    final byte[] input = random(50000);
+    final byte[] compressed = BrotliEncoder.compress(input, 0, input.length, null, 11, 22);
+    // Stored meta-blocks: a few bytes of overhead.
+    assertTrue(compressed.length < input.length + 16);
+    assertArrayEquals(input, decompress(compressed, 0, compressed.length));
+  }
+
+  @Test
+  public void outputLimit() throws IOException {
+    // The compressed meta-block is larger than the stored one, and it doesn't fit before the limit:
+    // it has to be written past the limit before it is replaced by the stored meta-block.
+    final byte[] input = random(20000);
+    final byte[] output = new byte[input.length + 100];
+    Arrays.fill(output, (byte)0x77);
+    final int limit = 8 + input.length + 8;
+    final int length = BrotliEncoder.compress(input, 0, input.length, 11, 22, output, 8, limit);
+    assertTrue(8 + length <= limit);
+    assertArrayEquals(input, decompress(output, 8, length));
+    for (int i=limit; i<output.length; ++i) assertEquals(0x77, output[i]);
+    for (int i=0; i<8; ++i) assertEquals(0x77, output[i]);
+  }
+
+}
@@ -0,0 +1,170 @@
+package info.jdavid.font.subset;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class CodepointSetTest {
+
+  private static void assertRanges(final CodepointSet set, final int... ranges) {
+    assertEquals(ranges.length / 2, set.rangeCount());
+    for (int i=0; i<ranges.length; i+=2) {
+      assertEquals(ranges[i], set.rangeStart(i / 2));
+      assertEquals(ranges[i + 1], set.rangeEnd(i / 2));
+    }
+  }
+
+  private static BitSet bits(final CodepointSet set) {
+    final BitSet bits = new BitSet();
+    for (int i=0; i<set.rangeCount(); ++i) bits.set(set.rangeStart(i), set.rangeEnd(i) + 1);
+    return bits;
+  }
+
+  private static CodepointSet set(final BitSet bits) {
+    return CodepointSet.of(bits.stream().toArray());
+  }
+
+  // A few ranges of random lengths, in the bmp or up to the last codepoint.
+  private static CodepointSet random(final Random random) {
+    final int max = random.nextBoolean() ? 0xffff : Character.MAX_CODE_POINT;
+    CodepointSet set = CodepointSet.EMPTY;
+    for (int i=random.nextInt(8); i>0; --i) {
+      final int start = random.nextInt(max + 1);
+      set = set.union(CodepointSet.range(start, Math.min(max, start + random.nextInt(64))));
+    }
+    return set;
+  }
+
+  @Test
+  public void empty() {
+    assertSame(CodepointSet.EMPTY, CodepointSet.of(""));
+    assertSame(CodepointSet.EMPTY, CodepointSet.of());
+    assertTrue(CodepointSet.EMPTY.isEmpty());
+    assertEquals(0, CodepointSet.EMPTY.size());
+    assertEquals(0, CodepointSet.EMPTY.toArray().length);
+    assertFalse(CodepointSet.EMPTY.contains(0));
+    assertEquals("", CodepointSet.EMPTY.encode());
+    assertEquals(CodepointSet.EMPTY, CodepointSet.decode(""));
+    assertEquals("", CodepointSet.EMPTY.toUnicodeRange());
+    final CodepointSet latin = CodepointSet.range(0x20, 0x7e);
+    assertEquals(latin, latin.union(CodepointSet.EMPTY));
+    assertEquals(latin, CodepointSet.EMPTY.union(latin));
+    assertEquals(CodepointSet.EMPTY, latin.intersection(CodepointSet.EMPTY));
+    assertEquals(latin, latin.minus(CodepointSet.EMPTY));
+    assertEquals(CodepointSet.EMPTY, CodepointSet.EMPTY.minus(latin));
+    assertEquals(CodepointSet.EMPTY, latin.minus(latin));
+  }
+
+  @Test
+  public void mergesRanges() {
+    assertRanges(CodepointSet.of("cabbage"), 'a', 'c', 'e', 'e', 'g', 'g');
+    assertRanges(CodepointSet.of(5, 3, 4, 4, 9, 8), 3, 5, 8, 9);
+    // Adjacent ranges.
+    assertRanges(CodepointSet.range(10, 19).union(CodepointSet.range(20, 29)), 10, 29);
+    assertRanges(CodepointSet.range(20, 29).union(CodepointSet.range(10, 19)), 10, 29);
+    assertRanges(CodepointSet.range(10, 19).union(CodepointSet.range(21, 29)), 10, 19, 21, 29);
+    // Overlapping and nested ranges.
+    assertRanges(CodepointSet.range(10, 20).union(CodepointSet.range(15, 30)), 10, 30);
+    assertRanges(CodepointSet.range(10, 40).union(CodepointSet.range(15, 30)), 10, 40);
+    assertRanges(CodepointSet.range(10, 12).union(CodepointSet.range(20, 22)).union(CodepointSet.range(11, 21)),
+                 10, 22);
+    assertEquals(CodepointSet.range(0x41, 0x5a), CodepointSet.of("ABCDEFGHIJKLMNOPQRSTUVWXYZ"));
+    assertEquals(CodepointSet.of("abc").hashCode(), CodepointSet.range('a', 'c').hashCode());
+    assertNotEquals(CodepointSet.of("abc"), CodepointSet.of("abd"));
+  }
+
+  @Test
+  public void setOperations() {
+    final CodepointSet a = CodepointSet.range(10, 20).union(CodepointSet.range(30, 40));
+    final CodepointSet b = CodepointSet.range(15, 35);
+    assertRanges(a.intersection(b), 15, 20, 30, 35);
+    assertRanges(a.minus(b), 10, 14, 36, 40);
+    assertRanges(b.minus(a), 21, 29);
+    assertRanges(a.union(b), 10, 40);
+    // Adjacent but disjoint.
+    assertEquals(CodepointSet.EMPTY, CodepointSet.range(10, 19).intersection(CodepointSet.range(20, 29)));
+    assertRanges(CodepointSet.range(10, 29).minus(CodepointSet.range(20, 29)), 10, 19);
+    assertRanges(CodepointSet.range(10, 29).minus(CodepointSet.of(10, 15, 29)), 11, 14, 16, 28);
+  }
+
+  @Test
+  public void setOperationsMatchBitSets() {
+    final Random random = new Random(42);
+    for (int n=0; n<2000; ++n) {
+      final CodepointSet a = random(random);
+      final CodepointSet b = random(random);
+      final BitSet union = bits(a);
+      union.or(bits(b));
+      assertEquals(set(union), a.union(b));
+      final BitSet intersection = bits(a);
+      intersection.and(bits(b));
+      assertEquals(set(intersection), a.intersection(b));
+      final BitSet difference = bits(a);
+      difference.andNot(bits(b));
+      assertEquals(set(difference), a.minus(b));
+      assertEquals(union.cardinality(), a.union(b).size());
+      final int probe = random.nextInt(Character.MAX_CODE_POINT + 1);
+      assertEquals(union.get(probe), a.union(b).contains(probe));
+      assertEquals(a, CodepointSet.decode(a.encode()));
+    }
+  }
+
+  @Test
+  public void supplementaryCodepoints() {
+    final String str = "a\uD83D\uDE00\uD83D\uDE01b\uD800\uDC00";
+    final CodepointSet set = CodepointSet.of(str);
+    assertRanges(set, 'a', 'b', 0x10000, 0x10000, 0x1f600, 0x1f601);
+    assertEquals(5, set.size());
+    assertTrue(set.contains(0x1f600));
+    assertFalse(set.contains(0xd83d));
+    assertArrayEquals(new int[] { 'a', 'b', 0x10000, 0x1f600, 0x1f601 }, set.toArray());
+    assertEquals("U+61-62, U+10000, U+1F600-1F601", set.toUnicodeRange());
+    final CodepointSet last = CodepointSet.range(0x10fff0, Character.MAX_CODE_POINT);
+    assertEquals(last, CodepointSet.decode(last.encode()));
+    assertEquals("U+10FFF0-10FFFF", last.toUnicodeRange());
+    try {
+      CodepointSet.of(Character.MAX_CODE_POINT + 1);
+      fail("The codepoint should have been rejected.");
+    }
+    catch (final IllegalArgumentException ignore) {}
+  }
+
+  @Test
+  public void encoding() {
+    final CodepointSet set =
+      CodepointSet.of(0).union(CodepointSet.range(0x20, 0x7e)).union(CodepointSet.range(0x4e00, 0x9fff))
+        .union(CodepointSet.of(0x1f600));
+    final String encoded = set.encode();
+    assertTrue(encoded.matches("[A-Za-z0-9_-]+"));
+    assertEquals(set, CodepointSet.decode(encoded));
+    assertEquals(encoded, set.toString());
+    // A single range starting at 0 is a zero gap and a zero length.
+    assertEquals("AAA", CodepointSet.of(0).encode());
+    assertEquals(CodepointSet.of(0), CodepointSet.decode("AAA"));
+    // Truncated varint, and a second range adjacent to the first one (ranges are always merged).
+    for (final String invalid: new String[] { "gA", "AAAA" }) {
+      try {
+        CodepointSet.decode(invalid);
+        fail("\"" + invalid + "\" should have been rejected.");
+      }
+      catch (final IllegalArgumentException ignore) {}
+    }
+  }
+
+  @Test
+  public void unicodeRange() {
+    assertEquals("U+20-7E, U+A0", CodepointSet.range(0x20, 0x7e).union(CodepointSet.of(0xa0)).toUnicodeRange());
+    assertEquals("U+41", CodepointSet.of("A").toUnicodeRange());
+  }
+
+}
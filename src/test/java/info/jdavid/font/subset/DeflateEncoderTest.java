@@ -0,0 +1,176 @@
+package info.jdavid.font.subset;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+// Inflates the output of the zlib-zopfli codec with java.util.zip.
+public class DeflateEncoderTest {
+
+  private static final int STORED = 0;
+  private static final int FIXED = 1;
+  private static final int DYNAMIC = 2;
+
+  private static byte[] inflate(final byte[] compressed, final int offset, final int length,
+                                final int inflatedLength) throws DataFormatException {
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed, offset, length);
+      final byte[] inflated = new byte[inflatedLength];
+      assertEquals(inflatedLength, inflater.inflate(inflated));
+      assertTrue(inflater.finished());
+      assertEquals(0, inflater.getRemaining());
+      return inflated;
+    }
+    finally {
+      inflater.end();
+    }
+  }
+
+  // Compresses through the codec, at an offset of both the input and the output, checks that the
+  // stream inflates back to the data, and returns the stream.
+  private static byte[] check(final byte[] data, final int iterations) throws DataFormatException {
+    final Codec codec = new Codecs.Zopfli();
+    final byte[] input = new byte[data.length + 10];
+    Arrays.fill(input, (byte)0x55);
+    System.arraycopy(data, 0, input, 3, data.length);
+    final byte[] output = new byte[codec.maxCompressedLength(data.length) + 5];
+    final int length =
+      codec.compress(input, 3, data.length, output, 5, new Codec.Parameters(11, 22, false, iterations));
+    assertTrue(length <= codec.maxCompressedLength(data.length));
+    assertArrayEquals(data, inflate(output, 5, length, data.length));
+    return Arrays.copyOfRange(output, 5, 5 + length);
+  }
+
+  // The type of the first block, after the two bytes of the zlib header.
+  private static int firstBlockType(final byte[] zlib) {
+    return (zlib[2] >> 1) & 3;
+  }
+
+  // The code lengths of the repeat symbols (16, 17 and 18) in the header of the first block, which
+  // has to be a dynamic block. They come first in the code length code lengths, three bits each.
+  private static int[] repeatCodeLengths(final byte[] zlib) {
+    final long bits = ByteBuffer.wrap(zlib, 2, 8).order(ByteOrder.LITTLE_ENDIAN).getLong(2);
+    // 3 bits of block header, then 5 + 5 + 4 bits for the number of codes.
+    final int start = 3 + 5 + 5 + 4;
+    return new int[] {
+      (int)(bits >>> start) & 7, (int)(bits >>> (start + 3)) & 7, (int)(bits >>> (start + 6)) & 7
+    };
+  }
+
+  private static byte[] random(final int length) {
+    final byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] text(final int length) {
+    final StringBuilder builder = new StringBuilder(length + 16);
+    final Random random = new Random(length);
+    final String[] words = { "glyph", "font", "subset", "woff", "zlib", "table", "the", "a", "of", "\n" };
+    while (builder.length() < length) builder.append(words[random.nextInt(words.length)]).append(' ');
+    return builder.substring(0, length).getBytes(StandardCharsets.US_ASCII);
+  }
+
+  @Test
+  public void empty() throws DataFormatException {
+    check(new byte[0], 15);
+  }
+
+  @Test
+  public void shorterThanAMatch() throws DataFormatException {
+    check(new byte[] { 7 }, 15);
+    check(new byte[] { 7, 7 }, 15);
+    check(new byte[] { 0, (byte)0xff }, 1);
+  }
+
+  @Test
+  public void incompressible() throws DataFormatException {
+    final byte[] data = random(150000);
+    final byte[] zlib = check(data, 3);
+    assertEquals(STORED, firstBlockType(zlib));
+    // Stored blocks of up to 65535 bytes, with 5 bytes of overhead each, plus the zlib header and checksum.
+    assertEquals(2 + data.length + 3 * 5 + 4, zlib.length);
+  }
+
+  @Test
+  public void fixedCode() throws DataFormatException {
+    final byte[] zlib = check("Hello, hello, hello World!".getBytes(StandardCharsets.US_ASCII), 15);
+    assertEquals(FIXED, firstBlockType(zlib));
+  }
+
+  @Test
+  public void dynamicCode() throws DataFormatException, IOException {
+    // Lower case text: the literals before 'a' have no code, which takes the repeat symbols.
+    final byte[] text = check(text(100000), 5);
+    assertEquals(DYNAMIC, firstBlockType(text));
+    final int[] repeats = repeatCodeLengths(text);
+    assertTrue(repeats[1] > 0 || repeats[2] > 0);
+    final byte[] font = Arrays.copyOf(Files.readAllBytes(Paths.get("DryBrush.ttf")), 100000);
+    final byte[] zlib = check(font, 5);
+    assertEquals(DYNAMIC, firstBlockType(zlib));
+    // Not larger than java.util.zip at its maximum level.
+    final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    deflater.setInput(font);
+    deflater.finish();
+    final byte[] buffer = new byte[200000];
+    final int deflated = deflater.deflate(buffer);
+    deflater.end();
+    assertTrue(zlib.length <= deflated);
+  }
+
+  @Test
+  public void multipleParts() throws DataFormatException {
+    // Over the 1MB part size, with matches that cross the boundary between the parts.
+    final byte[] data = text(3 << 19);
+    final byte[] zlib = check(data, 1);
+    assertTrue(zlib.length < data.length / 2);
+  }
+
+  private static Map<Integer, byte[]> woffTables(final byte[] woff) throws DataFormatException {
+    final ByteBuffer buffer = ByteBuffer.wrap(woff);
+    assertEquals(0x774f4646, buffer.getInt(0));
+    final int numTables = buffer.getShort(12) & 0xffff;
+    final Map<Integer, byte[]> tables = new LinkedHashMap<>(numTables);
+    for (int i=0; i<numTables; ++i) {
+      final int entry = 44 + 20 * i;
+      final int offset = buffer.getInt(entry + 4);
+      final int compressedLength = buffer.getInt(entry + 8);
+      final int length = buffer.getInt(entry + 12);
+      tables.put(buffer.getInt(entry), compressedLength < length ?
+                                       inflate(woff, offset, compressedLength, length) :
+                                       Arrays.copyOfRange(woff, offset, offset + length));
+    }
+    return tables;
+  }
+
+  @Test
+  public void woffTables() throws IOException, DataFormatException {
+    final Extractor extractor = new Extractor(Files.readAllBytes(Paths.get("DryBrush.ttf")));
+    final Map<Integer, byte[]> expected = woffTables(extractor.woff((CodepointSet)null));
+    final Map<Integer, byte[]> actual =
+      woffTables(extractor.woff(null, Options.DEFAULT.codec("zlib-zopfli")));
+    assertEquals(expected.keySet(), actual.keySet());
+    for (final Map.Entry<Integer, byte[]> entry: expected.entrySet()) {
+      assertArrayEquals(entry.getValue(), actual.get(entry.getKey()));
+    }
+  }
+
+}
@@ -0,0 +1,112 @@
+package info.jdavid.font.subset;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+
+
+public class ExtractorConcurrencyTest {
+
+  private static final List<CodepointSet> SUBSETS = new ArrayList<>();
+  static {
+    SUBSETS.add(CodepointSet.of("abc"));
+    SUBSETS.add(CodepointSet.of("The quick brown fox jumps over the lazy dog."));
+    SUBSETS.add(CodepointSet.range('A', 'Z'));
+    SUBSETS.add(CodepointSet.range('0', '9').union(CodepointSet.of("+-*/=")));
+    SUBSETS.add(CodepointSet.range(0x20, 0x7e));
+  }
+
+  private static byte[] encode(final Extractor extractor, final CodepointSet codepoints,
+                               final Format format) throws IOException {
+    switch (format) {
+      case TTF: return extractor.ttf(codepoints);
+      case WOFF: return extractor.woff(codepoints);
+      case WOFF2: return extractor.woff2(codepoints);
+      default: throw new IllegalArgumentException();
+    }
+  }
+
+  private static void check(final Extractor reference, final Extractor shared) throws Exception {
+    final Format[] formats = Format.values();
+    final byte[][][] expected = new byte[SUBSETS.size()][formats.length][];
+    for (int i=0; i<SUBSETS.size(); ++i) {
+      for (int j=0; j<formats.length; ++j) {
+        expected[i][j] = encode(reference, SUBSETS.get(i), formats[j]);
+      }
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<byte[]>> futures = new ArrayList<>();
+      final List<byte[]> expectations = new ArrayList<>();
+      for (int n=0; n<20; ++n) {
+        for (int i=0; i<SUBSETS.size(); ++i) {
+          for (int j=0; j<formats.length; ++j) {
+            final CodepointSet codepoints = SUBSETS.get(i);
+            final Format format = formats[j];
+            futures.add(executor.submit(() -> encode(shared, codepoints, format)));
+            expectations.add(expected[i][j]);
+          }
+        }
+      }
+      for (int i=0; i<futures.size(); ++i) {
+        assertArrayEquals(expectations.get(i), futures.get(i).get());
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void concurrentCalls() throws Exception {
+    final byte[] bytes = Files.readAllBytes(Paths.get("DryBrush.ttf"));
+    check(new Extractor(bytes), new Extractor(bytes));
+  }
+
+  @Test
+  public void concurrentCallsOnLazyFont() throws Exception {
+    final byte[] bytes = Files.readAllBytes(Paths.get("DryBrush.ttf"));
+    check(new Extractor(bytes), new Extractor(Paths.get("DryBrush.ttf")));
+  }
+
+  @Test
+  public void concurrentCallsWithCache() throws Exception {
+    final byte[] bytes = Files.readAllBytes(Paths.get("DryBrush.ttf"));
+    check(new Extractor(bytes), new Extractor(bytes, new SubsetCache(1024 * 1024)));
+  }
+
+  // The writers run on the executor of the options from tasks of that same pool: all the pool
+  // threads are busy with shards or formats, and the writers must not wait for queued tasks.
+  @Test(timeout = 120000)
+  public void sharedFixedPool() throws Exception {
+    final Extractor extractor = new Extractor(Files.readAllBytes(Paths.get("DryBrush.ttf")));
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final Options options = Options.DEFAULT.executor(executor);
+      for (final Format format: Format.values()) {
+        final List<Shard> shards = extractor.shards(SUBSETS, format, options, executor);
+        for (int i=0; i<SUBSETS.size(); ++i) {
+          assertArrayEquals(encode(extractor, SUBSETS.get(i), format), shards.get(i).bytes());
+        }
+      }
+      final Map<Format, byte[]> all = extractor.all(SUBSETS.get(4), options, executor);
+      for (final Format format: Format.values()) {
+        assertArrayEquals(encode(extractor, SUBSETS.get(4), format), all.get(format));
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+}
@@ -0,0 +1,63 @@
+package info.jdavid.font.subset;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class FontDictionaryTest {
+
+  @Test
+  public void roundTrip() throws IOException {
+    final Extractor extractor = new Extractor(Files.readAllBytes(Paths.get("DryBrush.ttf")));
+    final FontDictionary dictionary = FontDictionary.train(extractor, 64 * 1024);
+    assertTrue(dictionary.size() > 0 && dictionary.size() <= 64 * 1024);
+    final CodepointSet[] subsets = {
+      CodepointSet.of("Hello, World!"), CodepointSet.range(0x20, 0x7e), CodepointSet.of("\u00e9\u00e0\u00e7")
+    };
+    final Options[] options = {
+      Options.DEFAULT, Options.DEFAULT.brotliQuality(5), Options.DEFAULT.brotliQuality(9).brotliWindow(16)
+    };
+    for (final CodepointSet codepoints: subsets) {
+      final byte[] ttf = extractor.ttf(codepoints);
+      for (final Options o: options) {
+        final byte[] compressed = dictionary.compress(ttf, o);
+        assertArrayEquals(o.toString(), ttf, dictionary.decompress(compressed));
+      }
+    }
+  }
+
+  @Test
+  public void dictionaryHelps() throws IOException {
+    final Extractor extractor = new Extractor(Files.readAllBytes(Paths.get("DryBrush.ttf")));
+    final FontDictionary dictionary = FontDictionary.train(extractor, 256 * 1024);
+    final byte[] ttf = extractor.ttf(CodepointSet.of("The quick brown fox jumps over the lazy dog."));
+    final int plain = BrotliEncoder.compress(ttf, 0, ttf.length, new byte[0], 11, 22).length;
+    assertTrue(dictionary.compress(ttf).length < plain);
+  }
+
+  @Test
+  public void serialization() throws IOException {
+    final Extractor extractor = new Extractor(Files.readAllBytes(Paths.get("DryBrush.ttf")));
+    final FontDictionary dictionary = FontDictionary.train(extractor, 16 * 1024);
+    final byte[] bytes = dictionary.toByteArray();
+    final FontDictionary read = FontDictionary.read(bytes);
+    assertArrayEquals(dictionary.content(), read.content());
+    assertArrayEquals(dictionary.id(), read.id());
+    assertEquals(dictionary.size(), read.size());
+    bytes[bytes.length - 1] ^= 1;
+    try {
+      FontDictionary.read(bytes);
+      fail("The corrupted dictionary should have been rejected.");
+    }
+    catch (final IOException ignore) {}
+  }
+
+}
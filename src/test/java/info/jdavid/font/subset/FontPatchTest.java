@@ -0,0 +1,76 @@
+package info.jdavid.font.subset;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+
+public class FontPatchTest {
+
+  private static byte[] random(final Random random, final int length) {
+    final byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    final Random random = new Random(1);
+    final byte[] base = random(random, 20000);
+    final byte[] target = new byte[30000];
+    System.arraycopy(base, 0, target, 0, 8000);
+    System.arraycopy(random(random, 6000), 0, target, 8000, 6000);
+    System.arraycopy(base, 12000, target, 14000, 8000);
+    System.arraycopy(random(random, 8000), 0, target, 22000, 8000);
+    assertArrayEquals(target, FontPatch.apply(base, FontPatch.create(base, target)));
+    assertArrayEquals(new byte[0], FontPatch.apply(base, FontPatch.create(base, new byte[0])));
+  }
+
+  @Test
+  public void rejectsOtherBase() throws IOException {
+    final Random random = new Random(2);
+    final byte[] base = random(random, 1000);
+    final byte[] patch = FontPatch.create(base, random(random, 1000));
+    base[0] ^= 1;
+    expectFailure(base, patch, FontPatch.MAX_TARGET_LENGTH);
+  }
+
+  @Test
+  public void rejectsLargeTarget() throws IOException {
+    final Random random = new Random(3);
+    final byte[] base = random(random, 1000);
+    final byte[] target = random(random, 5000);
+    final byte[] patch = FontPatch.create(base, target);
+    expectFailure(base, patch, 4999);
+    assertArrayEquals(target, FontPatch.apply(base, patch, 5000));
+    // Declared target length of 2GB.
+    ByteBuffer.wrap(patch).putInt(13, Integer.MAX_VALUE);
+    expectFailure(base, patch, FontPatch.MAX_TARGET_LENGTH);
+  }
+
+  @Test
+  public void rejectsCorruptInstructions() throws IOException {
+    final Random random = new Random(4);
+    final byte[] base = random(random, 1000);
+    final byte[] patch = FontPatch.create(base, random(random, 1000));
+    expectFailure(base, Arrays.copyOf(patch, patch.length - 8), FontPatch.MAX_TARGET_LENGTH);
+    // Declared target length shorter than the instructions.
+    ByteBuffer.wrap(patch).putInt(13, 10);
+    expectFailure(base, patch, FontPatch.MAX_TARGET_LENGTH);
+  }
+
+  private static void expectFailure(final byte[] base, final byte[] patch, final int maxTargetLength) {
+    try {
+      FontPatch.apply(base, patch, maxTargetLength);
+      fail("The patch should have been rejected.");
+    }
+    catch (final IOException ignore) {}
+  }
+
+}
@@ -0,0 +1,84 @@
+package info.jdavid.font.subset;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+
+public class ParallelTest {
+
+  private static Runnable[] tasks(final AtomicInteger counter, final int count) {
+    final Runnable[] tasks = new Runnable[count];
+    for (int i=0; i<count; ++i) tasks[i] = counter::incrementAndGet;
+    return tasks;
+  }
+
+  @Test
+  public void runsEveryTask() {
+    final AtomicInteger counter = new AtomicInteger();
+    Parallel.run(tasks(counter, 10), null);
+    assertEquals(10, counter.get());
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Parallel.run(tasks(counter, 10), executor);
+      assertEquals(20, counter.get());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  // Every thread of the pool runs Parallel.run for more tasks on the same pool, as the writers do
+  // when called by Extractor.shards() with the same executor in the options.
+  @Test(timeout = 30000)
+  public void nestedOnFixedPool() throws Exception {
+    final AtomicInteger counter = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int i=0; i<8; ++i) {
+        futures.add(executor.submit(() -> Parallel.run(tasks(counter, 16), executor)));
+      }
+      for (final Future<?> future: futures) future.get();
+      assertEquals(8 * 16, counter.get());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void rejectedTasksRunOnCaller() {
+    final AtomicInteger counter = new AtomicInteger();
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+    Parallel.run(tasks(counter, 5), executor);
+    assertEquals(5, counter.get());
+  }
+
+  @Test
+  public void rethrows() {
+    final IllegalStateException error = new IllegalStateException();
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Parallel.run(new Runnable[] { () -> {}, () -> { throw error; }, () -> {} }, executor);
+      fail("The task exception should have been rethrown.");
+    }
+    catch (final IllegalStateException e) {
+      assertSame(error, e);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+}
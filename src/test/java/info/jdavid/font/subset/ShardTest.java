@@ -0,0 +1,37 @@
+package info.jdavid.font.subset;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class ShardTest {
+
+  private static final List<Shard> SHARDS =
+    Collections.singletonList(new Shard(CodepointSet.range(0x41, 0x5a), Format.WOFF2, new byte[0]));
+
+  @Test
+  public void css() {
+    assertEquals("@font-face {\n" +
+                 "  font-family: 'My Font';\n" +
+                 "  src: url('/fonts/0.woff2') format('woff2');\n" +
+                 "  unicode-range: U+41-5A;\n" +
+                 "}\n",
+                 Shard.css("My Font", SHARDS, i -> "/fonts/" + i + ".woff2"));
+  }
+
+  @Test
+  public void cssEscapesStrings() {
+    final String css = Shard.css("It's \\ a\nfont';}", SHARDS, i -> "/a'b.woff2");
+    assertEquals("@font-face {\n" +
+                 "  font-family: 'It\\'s \\\\ a\\a font\\';}';\n" +
+                 "  src: url('/a\\'b.woff2') format('woff2');\n" +
+                 "  unicode-range: U+41-5A;\n" +
+                 "}\n",
+                 css);
+  }
+
+}
@@ -0,0 +1,122 @@
+package info.jdavid.font.subset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+public class SubsetCacheTest {
+
+  // The per entry overhead of SubsetCache, for an entry without a codepoint set.
+  private static final int OVERHEAD = 128;
+
+  private static SubsetCache.Key key(final int digest) {
+    return new SubsetCache.Key(new byte[] { (byte)digest }, null, Format.TTF, "");
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    final SubsetCache cache = new SubsetCache(3 * (OVERHEAD + 100));
+    cache.put(key(1), new byte[100]);
+    cache.put(key(2), new byte[100]);
+    cache.put(key(3), new byte[100]);
+    assertEquals(3, cache.entryCount());
+    assertEquals(3 * (OVERHEAD + 100), cache.size());
+    assertNotNull(cache.get(key(1)));
+    cache.put(key(4), new byte[100]);
+    assertEquals(1, cache.evictionCount());
+    assertNull(cache.get(key(2)));
+    assertNotNull(cache.get(key(1)));
+    assertNotNull(cache.get(key(3)));
+    assertNotNull(cache.get(key(4)));
+    assertEquals(3 * (OVERHEAD + 100), cache.size());
+    // A large entry evicts as many entries as needed, the least recently used first.
+    cache.put(key(5), new byte[150]);
+    assertEquals(3, cache.evictionCount());
+    assertNull(cache.get(key(1)));
+    assertNull(cache.get(key(3)));
+    assertNotNull(cache.get(key(4)));
+    assertEquals(2 * OVERHEAD + 250, cache.size());
+  }
+
+  @Test
+  public void sizeAccounting() {
+    final SubsetCache cache = new SubsetCache(1024);
+    cache.put(key(1), new byte[100]);
+    final byte[] replacement = new byte[50];
+    cache.put(key(1), replacement);
+    assertEquals(1, cache.entryCount());
+    assertEquals(OVERHEAD + 50, cache.size());
+    assertSame(replacement, cache.get(key(1)));
+    // Entries larger than the cache are not stored.
+    cache.put(key(2), new byte[1024]);
+    assertNull(cache.get(key(2)));
+    assertEquals(OVERHEAD + 50, cache.size());
+    assertEquals(0, cache.evictionCount());
+    // The ranges of the codepoint set count as well.
+    final SubsetCache.Key ranges =
+      new SubsetCache.Key(new byte[] { 3 }, CodepointSet.range('a', 'z').union(CodepointSet.range('0', '9')),
+                          Format.TTF, "");
+    cache.put(ranges, new byte[10]);
+    assertEquals(OVERHEAD + 50 + OVERHEAD + 10 + 2 * 8, cache.size());
+  }
+
+  @Test
+  public void counters() {
+    final SubsetCache cache = new SubsetCache(1024);
+    assertNull(cache.get(key(1)));
+    cache.put(key(1), new byte[10]);
+    assertNotNull(cache.get(key(1)));
+    assertNotNull(cache.get(key(1)));
+    assertEquals(2, cache.hitCount());
+    assertEquals(1, cache.missCount());
+    cache.clear();
+    assertEquals(0, cache.entryCount());
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.hitCount());
+    assertEquals(0, cache.missCount());
+    assertEquals(0, cache.evictionCount());
+    assertNull(cache.get(key(1)));
+  }
+
+  @Test
+  public void keys() {
+    final byte[] digest = { 1, 2, 3 };
+    final CodepointSet latin = CodepointSet.range(0x20, 0x7e);
+    assertEquals(new SubsetCache.Key(digest, latin, Format.WOFF2, ""),
+                 new SubsetCache.Key(digest.clone(), CodepointSet.range(0x20, 0x7e), Format.WOFF2, ""));
+    assertNotEquals(new SubsetCache.Key(digest, latin, Format.WOFF2, ""),
+                    new SubsetCache.Key(new byte[] { 1, 2, 4 }, latin, Format.WOFF2, ""));
+    assertNotEquals(new SubsetCache.Key(digest, latin, Format.WOFF2, ""),
+                    new SubsetCache.Key(digest, latin, Format.WOFF, ""));
+    assertNotEquals(new SubsetCache.Key(digest, latin, Format.WOFF2, ""),
+                    new SubsetCache.Key(digest, null, Format.WOFF2, ""));
+    assertNotEquals(new SubsetCache.Key(digest, latin, Format.WOFF2, Options.DEFAULT.key(Format.WOFF2)),
+                    new SubsetCache.Key(digest, latin, Format.WOFF2,
+                                        Options.DEFAULT.brotliQuality(5).key(Format.WOFF2)));
+  }
+
+  @Test
+  public void optionKeys() {
+    final Options options = Options.DEFAULT;
+    // Options only change the keys of the formats they apply to.
+    assertEquals(options.key(Format.TTF), options.brotliQuality(5).key(Format.TTF));
+    assertEquals(options.key(Format.WOFF), options.brotliQuality(5).key(Format.WOFF));
+    assertNotEquals(options.key(Format.WOFF2), options.brotliQuality(5).key(Format.WOFF2));
+    assertNotEquals(options.key(Format.WOFF2), options.brotliWindow(18).key(Format.WOFF2));
+    assertNotEquals(options.key(Format.WOFF2), options.brotliFontMode(true).key(Format.WOFF2));
+    assertEquals(options.key(Format.WOFF2), options.deflateLevel(1).key(Format.WOFF2));
+    assertNotEquals(options.key(Format.WOFF), options.deflateLevel(1).key(Format.WOFF));
+    assertNotEquals(options.key(Format.WOFF), options.deflateIterations(5).key(Format.WOFF));
+    assertNotEquals(options.key(Format.WOFF), options.codec("zlib-zopfli").key(Format.WOFF));
+    assertEquals(options.key(Format.TTF), options.codec("zlib-zopfli").key(Format.TTF));
+    for (final Format format: Format.values()) {
+      assertNotEquals(options.key(format), options.preserveGlyphIds(true).key(format));
+    }
+  }
+
+}
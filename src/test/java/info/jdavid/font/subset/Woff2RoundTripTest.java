@@ -0,0 +1,477 @@
+package info.jdavid.font.subset;
+
+import com.google.typography.font.sfntly.Font;
+import com.google.typography.font.sfntly.FontFactory;
+import org.brotli.dec.BrotliInputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+// Decodes the woff2 output with a minimal decoder (brotli stream, table directory, glyf/loca and
+// hmtx transforms) and compares it with the ttf output for the same subset: tables that are not
+// transformed byte for byte, glyphs by their outlines, and hmtx byte for byte.
+public class Woff2RoundTripTest {
+
+  private static final String[] KNOWN_TABLES = {
+    "cmap", "head", "hhea", "hmtx", "maxp", "name", "OS/2", "post", "cvt ", "fpgm", "glyf", "loca", "prep",
+    "CFF ", "VORG", "EBDT", "EBLC", "gasp", "hdmx", "kern", "LTSH", "PCLT", "VDMX", "vhea", "vmtx", "BASE",
+    "GDEF", "GPOS", "GSUB", "EBSC", "JSTF", "MATH", "CBDT", "CBLC", "COLR", "CPAL", "SVG ", "sbix", "acnt",
+    "avar", "bdat", "bloc", "bsln", "cvar", "fdsc", "feat", "fmtx", "fvar", "gvar", "hsty", "just", "lcar",
+    "mort", "morx", "opbd", "prop", "trak", "Zapf", "Silf", "Glat", "Gloc", "Feat", "Sill"
+  };
+
+  private static final int ARG_1_AND_2_ARE_WORDS = 1;
+  private static final int WE_HAVE_A_SCALE = 1 << 3;
+  private static final int MORE_COMPONENTS = 1 << 5;
+  private static final int WE_HAVE_AN_X_AND_Y_SCALE = 1 << 6;
+  private static final int WE_HAVE_A_TWO_BY_TWO = 1 << 7;
+  private static final int WE_HAVE_INSTRUCTIONS = 1 << 8;
+
+  @Test
+  public void subset() throws IOException {
+    final Extractor extractor = new Extractor(Files.readAllBytes(Paths.get("DryBrush.ttf")));
+    final CodepointSet codepoints = CodepointSet.of("Hello, World! 0123456789");
+    check(extractor.ttf(codepoints), extractor.woff2(codepoints));
+  }
+
+  @Test
+  public void subsetWithGlyphIds() throws IOException {
+    final Extractor extractor = new Extractor(Files.readAllBytes(Paths.get("DryBrush.ttf")));
+    final CodepointSet codepoints = CodepointSet.of("The quick brown fox");
+    final Options options = Options.DEFAULT.preserveGlyphIds(true);
+    check(extractor.ttf(codepoints, options), extractor.woff2(codepoints, options));
+  }
+
+  @Test
+  public void wholeFont() throws IOException {
+    final Extractor extractor = new Extractor(Files.readAllBytes(Paths.get("DryBrush.ttf")));
+    check(extractor.ttf(), extractor.woff2());
+  }
+
+  @Test
+  public void pureJavaCodec() throws IOException {
+    final Extractor extractor = new Extractor(Files.readAllBytes(Paths.get("DryBrush.ttf")));
+    final CodepointSet codepoints = CodepointSet.of("Hello, World! 0123456789");
+    final Options options = Options.DEFAULT.codec("brotli-java");
+    check(extractor.ttf(codepoints), extractor.woff2(codepoints, options));
+    check(extractor.ttf(codepoints), extractor.woff2(codepoints, options.brotliQuality(1).brotliWindow(10)));
+    check(extractor.ttf(), extractor.woff2(null, options));
+  }
+
+  // The pooled buffers are reused across the writes, whatever the size of the previous font.
+  @Test
+  public void callerBuffer() throws IOException {
+    final Extractor extractor = new Extractor(Files.readAllBytes(Paths.get("DryBrush.ttf")));
+    final Woff2Writer writer = new Woff2Writer();
+    final byte[][] ttfs = { extractor.ttf(), extractor.ttf(CodepointSet.of("Hello, World!")), extractor.ttf() };
+    for (final byte[] ttf: ttfs) {
+      final Font font = FontFactory.getInstance().loadFonts(ttf)[0];
+      final byte[] woff2 = writer.write(font);
+      check(ttf, woff2);
+      final byte[] small = new byte[woff2.length + 7];
+      assertEquals(woff2.length, writer.write(font, small, 8));
+      assertArrayEquals(new byte[small.length], small);
+      final byte[] output = new byte[woff2.length + 8];
+      assertEquals(woff2.length, writer.write(font, output, 8));
+      assertArrayEquals(woff2, Arrays.copyOfRange(output, 8, output.length));
+    }
+  }
+
+  static void check(final byte[] ttf, final byte[] woff2) throws IOException {
+    final Map<String, byte[]> expected = tables(ttf);
+    final ByteBuffer header = ByteBuffer.wrap(woff2);
+    assertEquals(0x774f4632, header.getInt(0));
+    assertEquals(ByteBuffer.wrap(ttf).getInt(0), header.getInt(4));
+    assertEquals(woff2.length, header.getInt(8));
+    final int numTables = header.getShort(12) & 0xffff;
+    assertEquals(expected.size(), numTables);
+    final int compressedLength = header.getInt(20);
+
+    final String[] tags = new String[numTables];
+    final int[] origLengths = new int[numTables];
+    final int[] lengths = new int[numTables];
+    final boolean[] transformed = new boolean[numTables];
+    final int[] position = { 48 };
+    for (int i=0; i<numTables; ++i) {
+      final int flags = woff2[position[0]++] & 0xff;
+      if ((flags & 0x3f) == 0x3f) {
+        tags[i] = new String(woff2, position[0], 4, StandardCharsets.ISO_8859_1);
+        position[0] += 4;
+      }
+      else {
+        tags[i] = KNOWN_TABLES[flags & 0x3f];
+      }
+      final int version = flags >> 6;
+      transformed[i] = "glyf".equals(tags[i]) || "loca".equals(tags[i]) ? version == 0 : version != 0;
+      origLengths[i] = lengths[i] = readBase128(woff2, position);
+      if (transformed[i]) lengths[i] = readBase128(woff2, position);
+    }
+    final byte[] data = inflate(woff2, position[0], compressedLength);
+
+    final Map<String, byte[]> actual = new LinkedHashMap<>();
+    int offset = 0;
+    for (int i=0; i<numTables; ++i) {
+      actual.put(tags[i], Arrays.copyOfRange(data, offset, offset + lengths[i]));
+      offset += lengths[i];
+    }
+    assertEquals(data.length, offset);
+
+    for (int i=0; i<numTables; ++i) {
+      final String tag = tags[i];
+      assertTrue(tag, expected.containsKey(tag));
+      assertEquals(tag, expected.get(tag).length, origLengths[i]);
+      if (!transformed[i]) {
+        assertArrayEquals(tag, mask(tag, expected.get(tag)), mask(tag, actual.get(tag)));
+      }
+    }
+
+    final byte[] head = expected.get("head");
+    final int indexFormat = head == null ? 0 : ByteBuffer.wrap(head).getShort(50);
+    final int glyfIndex = index(tags, "glyf");
+    final Glyph[] glyphs;
+    if (glyfIndex < numTables && transformed[glyfIndex]) {
+      assertEquals(0, actual.get("loca").length);
+      final ByteBuffer glyf = ByteBuffer.wrap(actual.get("glyf"));
+      assertEquals(indexFormat, glyf.getShort(6));
+      glyphs = decodeGlyphs(glyf);
+      final Glyph[] original = parseGlyphs(expected.get("glyf"), expected.get("loca"), indexFormat);
+      assertEquals(original.length, glyphs.length);
+      for (int g=0; g<glyphs.length; ++g) {
+        assertEquals("glyph " + g, original[g], glyphs[g]);
+      }
+    }
+    else {
+      glyphs = null;
+    }
+
+    final int hmtxIndex = index(tags, "hmtx");
+    if (hmtxIndex < numTables && transformed[hmtxIndex]) {
+      assertTrue(glyphs != null);
+      final int numberOfHMetrics = ByteBuffer.wrap(expected.get("hhea")).getShort(34) & 0xffff;
+      assertArrayEquals(expected.get("hmtx"), decodeHmtx(actual.get("hmtx"), glyphs, numberOfHMetrics));
+    }
+  }
+
+  private static int index(final String[] tags, final String tag) {
+    int i = 0;
+    while (i < tags.length && !tags[i].equals(tag)) ++i;
+    return i;
+  }
+
+  // The checksum adjustment of the head table is set when the ttf file is written.
+  private static byte[] mask(final String tag, final byte[] table) {
+    if (!"head".equals(tag)) return table;
+    final byte[] copy = table.clone();
+    Arrays.fill(copy, 8, 12, (byte)0);
+    return copy;
+  }
+
+  private static Map<String, byte[]> tables(final byte[] ttf) {
+    final ByteBuffer buffer = ByteBuffer.wrap(ttf);
+    final int numTables = buffer.getShort(4) & 0xffff;
+    final Map<String, byte[]> tables = new LinkedHashMap<>();
+    for (int i=0; i<numTables; ++i) {
+      final int entry = 12 + 16 * i;
+      final int offset = buffer.getInt(entry + 8);
+      tables.put(new String(ttf, entry, 4, StandardCharsets.ISO_8859_1),
+                 Arrays.copyOfRange(ttf, offset, offset + buffer.getInt(entry + 12)));
+    }
+    return tables;
+  }
+
+  private static byte[] inflate(final byte[] bytes, final int offset, final int length) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (final InputStream in = new BrotliInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+      final byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private static int readBase128(final byte[] bytes, final int[] position) {
+    int value = 0;
+    for (int i=0; i<5; ++i) {
+      final int b = bytes[position[0]++] & 0xff;
+      value = (value << 7) | (b & 0x7f);
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new AssertionError("Invalid UIntBase128.");
+  }
+
+  private static int read255UShort(final ByteBuffer buffer) {
+    final int code = buffer.get() & 0xff;
+    if (code == 253) return buffer.getShort() & 0xffff;
+    if (code == 254) return 506 + (buffer.get() & 0xff);
+    if (code == 255) return 253 + (buffer.get() & 0xff);
+    return code;
+  }
+
+  private static ByteBuffer slice(final ByteBuffer buffer, final int offset, final int length) {
+    final ByteBuffer slice = buffer.duplicate();
+    slice.position(offset);
+    slice.limit(offset + length);
+    return slice.slice();
+  }
+
+  private static Glyph[] decodeGlyphs(final ByteBuffer glyf) {
+    final int numGlyphs = glyf.getShort(4) & 0xffff;
+    final ByteBuffer[] streams = new ByteBuffer[7];
+    int offset = 36;
+    for (int i=0; i<streams.length; ++i) {
+      final int length = glyf.getInt(8 + 4 * i);
+      streams[i] = slice(glyf, offset, length);
+      offset += length;
+    }
+    assertEquals(glyf.limit(), offset);
+    final ByteBuffer nContours = streams[0];
+    final ByteBuffer nPoints = streams[1];
+    final ByteBuffer flags = streams[2];
+    final ByteBuffer data = streams[3];
+    final ByteBuffer composites = streams[4];
+    final ByteBuffer bboxes = streams[5];
+    final ByteBuffer instructions = streams[6];
+    final byte[] bitmap = new byte[((numGlyphs + 31) >> 5) << 2];
+    bboxes.get(bitmap);
+
+    final Glyph[] glyphs = new Glyph[numGlyphs];
+    for (int g=0; g<numGlyphs; ++g) {
+      final boolean hasBbox = (bitmap[g >> 3] & (0x80 >> (g & 7))) != 0;
+      final int contourCount = nContours.getShort();
+      final Glyph glyph = glyphs[g] = new Glyph();
+      if (contourCount == 0) {
+        assertTrue(!hasBbox);
+        continue;
+      }
+      if (contourCount > 0) {
+        glyph.endPoints = new int[contourCount];
+        int pointCount = 0;
+        for (int i=0; i<contourCount; ++i) {
+          pointCount += read255UShort(nPoints);
+          glyph.endPoints[i] = pointCount - 1;
+        }
+        glyph.onCurve = new boolean[pointCount];
+        glyph.x = new int[pointCount];
+        glyph.y = new int[pointCount];
+        int x = 0;
+        int y = 0;
+        for (int i=0; i<pointCount; ++i) {
+          final int flag = flags.get() & 0xff;
+          glyph.onCurve[i] = (flag & 0x80) == 0;
+          final int[] delta = readTriplet(flag & 0x7f, data);
+          glyph.x[i] = x += delta[0];
+          glyph.y[i] = y += delta[1];
+        }
+        glyph.instructions = new byte[read255UShort(data)];
+        instructions.get(glyph.instructions);
+        if (hasBbox) {
+          glyph.bbox = new int[] { bboxes.getShort(), bboxes.getShort(), bboxes.getShort(), bboxes.getShort() };
+        }
+        else {
+          glyph.bbox = new int[] { x, y, x, y };
+          for (int i=0; i<pointCount; ++i) {
+            glyph.bbox[0] = Math.min(glyph.bbox[0], glyph.x[i]);
+            glyph.bbox[1] = Math.min(glyph.bbox[1], glyph.y[i]);
+            glyph.bbox[2] = Math.max(glyph.bbox[2], glyph.x[i]);
+            glyph.bbox[3] = Math.max(glyph.bbox[3], glyph.y[i]);
+          }
+        }
+      }
+      else {
+        final int start = composites.position();
+        final boolean hasInstructions = skipComponents(composites);
+        glyph.components = new byte[composites.position() - start];
+        composites.position(start);
+        composites.get(glyph.components);
+        glyph.instructions = new byte[hasInstructions ? read255UShort(data) : 0];
+        instructions.get(glyph.instructions);
+        assertTrue(hasBbox);
+        glyph.bbox = new int[] { bboxes.getShort(), bboxes.getShort(), bboxes.getShort(), bboxes.getShort() };
+      }
+    }
+    for (final ByteBuffer stream: streams) assertEquals(0, stream.remaining());
+    return glyphs;
+  }
+
+  // The point coordinates deltas for the triplet encoding of the woff2 specification.
+  private static int[] readTriplet(final int flag, final ByteBuffer data) {
+    final int dx;
+    final int dy;
+    if (flag < 10) {
+      dx = 0;
+      dy = withSign(flag, ((flag & 14) << 7) + (data.get() & 0xff));
+    }
+    else if (flag < 20) {
+      dx = withSign(flag, (((flag - 10) & 14) << 7) + (data.get() & 0xff));
+      dy = 0;
+    }
+    else if (flag < 84) {
+      final int b0 = flag - 20;
+      final int b1 = data.get() & 0xff;
+      dx = withSign(flag, 1 + (b0 & 0x30) + (b1 >> 4));
+      dy = withSign(flag >> 1, 1 + ((b0 & 0x0c) << 2) + (b1 & 0x0f));
+    }
+    else if (flag < 120) {
+      final int b0 = flag - 84;
+      dx = withSign(flag, 1 + ((b0 / 12) << 8) + (data.get() & 0xff));
+      dy = withSign(flag >> 1, 1 + (((b0 % 12) >> 2) << 8) + (data.get() & 0xff));
+    }
+    else if (flag < 124) {
+      final int b1 = data.get() & 0xff;
+      final int b2 = data.get() & 0xff;
+      dx = withSign(flag, (b1 << 4) + (b2 >> 4));
+      dy = withSign(flag >> 1, ((b2 & 0x0f) << 8) + (data.get() & 0xff));
+    }
+    else {
+      dx = withSign(flag, data.getShort() & 0xffff);
+      dy = withSign(flag >> 1, data.getShort() & 0xffff);
+    }
+    return new int[] { dx, dy };
+  }
+
+  private static int withSign(final int flag, final int value) {
+    return (flag & 1) != 0 ? value : -value;
+  }
+
+  // Moves past the components of a composite glyph, and returns whether it has instructions.
+  private static boolean skipComponents(final ByteBuffer buffer) {
+    boolean hasInstructions = false;
+    int flags;
+    do {
+      flags = buffer.getShort() & 0xffff;
+      hasInstructions |= (flags & WE_HAVE_INSTRUCTIONS) != 0;
+      int length = (flags & ARG_1_AND_2_ARE_WORDS) != 0 ? 6 : 4;
+      if ((flags & WE_HAVE_A_SCALE) != 0) length += 2;
+      else if ((flags & WE_HAVE_AN_X_AND_Y_SCALE) != 0) length += 4;
+      else if ((flags & WE_HAVE_A_TWO_BY_TWO) != 0) length += 8;
+      buffer.position(buffer.position() + length);
+    }
+    while ((flags & MORE_COMPONENTS) != 0);
+    return hasInstructions;
+  }
+
+  private static Glyph[] parseGlyphs(final byte[] glyf, final byte[] loca, final int indexFormat) {
+    final ByteBuffer locaBuffer = ByteBuffer.wrap(loca);
+    final int numGlyphs = loca.length / (indexFormat == 0 ? 2 : 4) - 1;
+    final Glyph[] glyphs = new Glyph[numGlyphs];
+    for (int g=0; g<numGlyphs; ++g) {
+      final int start = indexFormat == 0 ? (locaBuffer.getShort(2 * g) & 0xffff) * 2 : locaBuffer.getInt(4 * g);
+      final int end = indexFormat == 0 ? (locaBuffer.getShort(2 * g + 2) & 0xffff) * 2 : locaBuffer.getInt(4 * g + 4);
+      final Glyph glyph = glyphs[g] = new Glyph();
+      if (end <= start) continue;
+      final ByteBuffer buffer = slice(ByteBuffer.wrap(glyf), start, end - start);
+      final int contourCount = buffer.getShort();
+      if (contourCount == 0) continue;
+      glyph.bbox = new int[] { buffer.getShort(), buffer.getShort(), buffer.getShort(), buffer.getShort() };
+      if (contourCount > 0) {
+        glyph.endPoints = new int[contourCount];
+        for (int i=0; i<contourCount; ++i) glyph.endPoints[i] = buffer.getShort() & 0xffff;
+        final int pointCount = glyph.endPoints[contourCount - 1] + 1;
+        glyph.instructions = new byte[buffer.getShort() & 0xffff];
+        buffer.get(glyph.instructions);
+        final int[] flags = new int[pointCount];
+        for (int i=0; i<pointCount;) {
+          final int flag = buffer.get() & 0xff;
+          int repeat = (flag & 8) == 0 ? 1 : (buffer.get() & 0xff) + 1;
+          while (repeat-- > 0) flags[i++] = flag;
+        }
+        glyph.onCurve = new boolean[pointCount];
+        glyph.x = new int[pointCount];
+        glyph.y = new int[pointCount];
+        int x = 0;
+        for (int i=0; i<pointCount; ++i) {
+          glyph.onCurve[i] = (flags[i] & 1) != 0;
+          glyph.x[i] = x += readCoordinate(buffer, flags[i], 2, 16);
+        }
+        int y = 0;
+        for (int i=0; i<pointCount; ++i) glyph.y[i] = y += readCoordinate(buffer, flags[i], 4, 32);
+      }
+      else {
+        final int componentStart = buffer.position();
+        final boolean hasInstructions = skipComponents(buffer);
+        glyph.components = new byte[buffer.position() - componentStart];
+        buffer.position(componentStart);
+        buffer.get(glyph.components);
+        glyph.instructions = new byte[hasInstructions ? buffer.getShort() & 0xffff : 0];
+        buffer.get(glyph.instructions);
+      }
+    }
+    return glyphs;
+  }
+
+  private static int readCoordinate(final ByteBuffer buffer, final int flag, final int shortBit, final int sameBit) {
+    if ((flag & shortBit) != 0) {
+      final int value = buffer.get() & 0xff;
+      return (flag & sameBit) != 0 ? value : -value;
+    }
+    return (flag & sameBit) != 0 ? 0 : buffer.getShort();
+  }
+
+  private static byte[] decodeHmtx(final byte[] transformed, final Glyph[] glyphs, final int numberOfHMetrics) {
+    final ByteBuffer in = ByteBuffer.wrap(transformed);
+    final int flags = in.get();
+    final int numGlyphs = glyphs.length;
+    final int[] advances = new int[numberOfHMetrics];
+    for (int i=0; i<numberOfHMetrics; ++i) advances[i] = in.getShort() & 0xffff;
+    final int[] lsbs = new int[numGlyphs];
+    for (int g=0; g<numberOfHMetrics; ++g) lsbs[g] = (flags & 1) != 0 ? glyphs[g].xMin() : in.getShort();
+    for (int g=numberOfHMetrics; g<numGlyphs; ++g) lsbs[g] = (flags & 2) != 0 ? glyphs[g].xMin() : in.getShort();
+    assertEquals(0, in.remaining());
+    final ByteBuffer out = ByteBuffer.allocate(numberOfHMetrics * 2 + numGlyphs * 2);
+    for (int g=0; g<numberOfHMetrics; ++g) out.putShort((short)advances[g]).putShort((short)lsbs[g]);
+    for (int g=numberOfHMetrics; g<numGlyphs; ++g) out.putShort((short)lsbs[g]);
+    return out.array();
+  }
+
+  private static final class Glyph {
+    int[] bbox;
+    int[] endPoints;
+    boolean[] onCurve;
+    int[] x;
+    int[] y;
+    byte[] components;
+    byte[] instructions;
+
+    int xMin() {
+      return bbox == null ? 0 : bbox[0];
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Glyph)) return false;
+      final Glyph other = (Glyph)o;
+      return Arrays.equals(bbox, other.bbox) && Arrays.equals(endPoints, other.endPoints) &&
+             Arrays.equals(onCurve, other.onCurve) && Arrays.equals(x, other.x) && Arrays.equals(y, other.y) &&
+             Arrays.equals(components, other.components) && Arrays.equals(instructions, other.instructions);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(bbox);
+    }
+
+    @Override
+    public String toString() {
+      return "Glyph{bbox=" + Arrays.toString(bbox) + ", endPoints=" + Arrays.toString(endPoints) +
+             ", points=" + (x == null ? 0 : x.length) + ", components=" +
+             (components == null ? 0 : components.length) + " bytes, instructions=" +
+             (instructions == null ? 0 : instructions.length) + " bytes}";
+    }
+  }
+
+}